@@ -20,15 +20,24 @@ import android.content.Context;
 import android.net.sip.SipException;
 import android.net.sip.SipManager;
 import android.net.sip.SipProfile;
+import android.os.SystemClock;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Manages the {@link PhoneAccount} entries for SIP calling.
@@ -104,7 +113,21 @@ public final class SipAccountRegistry {
     private static final boolean VERBOSE = false; /* STOP SHIP if true */
     private static final SipAccountRegistry INSTANCE = new SipAccountRegistry();
 
-    private final List<AccountEntry> mAccounts = new CopyOnWriteArrayList<>();
+    /** Maximum number of SIP services being opened at the same time. */
+    private static final int MAX_PARALLEL_STARTS = 4;
+    /** Number of times opening the SIP service of a profile is attempted before giving up. */
+    private static final int MAX_START_ATTEMPTS = 2;
+    /** How long to wait for the SIP service of a single profile to open. */
+    private static final long START_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    /** The started accounts, keyed by profile name. */
+    private final ConcurrentHashMap<String, AccountEntry> mAccounts = new ConcurrentHashMap<>();
+
+    /** Runs start requests one at a time, in the order they were made. */
+    private final ExecutorService mStartExecutor = newExecutor(1);
+    /** Opens the SIP services of the profiles being started, a few at a time. */
+    private final ExecutorService mSipServiceExecutor = newExecutor(MAX_PARALLEL_STARTS);
 
     private SipAccountRegistry() {}
 
@@ -125,7 +148,7 @@ public final class SipAccountRegistry {
      */
     void verifyAndPurgeInvalidPhoneAccounts(Context context) {
         TelecomManager telecomManager = TelecomManager.from(context);
-        SipProfileDb profileDb = new SipProfileDb(context);
+        SipProfileDb profileDb = SipProfileDb.getInstance(context);
         List<PhoneAccountHandle> accountHandles = telecomManager.getPhoneAccountsSupportingScheme(
                 PhoneAccount.SCHEME_SIP);
 
@@ -156,13 +179,22 @@ public final class SipAccountRegistry {
      * SIP service (this method is invoked via an intent from the SipService once a profile has
      * been stopped/closed).
      *
-     * @param sipProfileName Name of the SIP profile.
+     * @param sipProfileName Name or local URI of the SIP profile.
      */
     void removeSipProfile(String sipProfileName) {
-        AccountEntry accountEntry = getAccountEntry(sipProfileName);
+        if (sipProfileName == null) {
+            return;
+        }
+        if (mAccounts.remove(sipProfileName) != null) {
+            return;
+        }
 
-        if (accountEntry != null) {
-            mAccounts.remove(accountEntry);
+        // The SipService identifies the closed profile by its local URI rather than its name.
+        Iterator<AccountEntry> iterator = mAccounts.values().iterator();
+        while (iterator.hasNext()) {
+            if (sipProfileName.equals(iterator.next().getProfile().getUriString())) {
+                iterator.remove();
+            }
         }
     }
 
@@ -213,19 +245,23 @@ public final class SipAccountRegistry {
             final Context context, final String sipProfileName, final boolean enableProfile) {
         if (VERBOSE) log("startSipProfiles, start auto registration");
 
-        new Thread(new Runnable() {
+        mStartExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 startSipProfiles(context, sipProfileName, enableProfile);
-            }}
-        ).start();
+            }
+        });
     }
 
     /**
-     * Loops through all SIP accounts from the SIP database, starts each service and registers
-     * each with the telecom framework. If a specific sipProfileName is specified, this will only
+     * Loops through all SIP accounts from the SIP database, registers each with the telecom
+     * framework and starts each service. If a specific sipProfileName is specified, this will only
      * register the associated SIP account.
      *
+     * All the {@link PhoneAccount}s are registered before any SIP service is started, so that the
+     * accounts show up in telecom without waiting on the network. The SIP services are then opened
+     * in parallel on {@link #mSipServiceExecutor}.
+     *
      * @param context The context.
      * @param sipProfileName A specific SIP profile Name to start, or {@code null} to start all.
      * @param enableProfile Sip account should be enabled.
@@ -236,8 +272,9 @@ public final class SipAccountRegistry {
         String primaryProfile = sipSharedPreferences.getPrimaryAccount();
         TelecomManager telecomManager = TelecomManager.from(context);
         SipManager sipManager = SipManager.newInstance(context);
-        SipProfileDb profileDb = new SipProfileDb(context);
+        SipProfileDb profileDb = SipProfileDb.getInstance(context);
         List<SipProfile> sipProfileList = profileDb.retrieveSipProfileList();
+        List<SipProfile> profilesToStart = new ArrayList<>(sipProfileList.size());
 
         for (SipProfile profile : sipProfileList) {
             // Register a PhoneAccount for the profile and optionally enable the primary
@@ -248,10 +285,19 @@ public final class SipAccountRegistry {
                 if (enableProfile) {
                     telecomManager.enablePhoneAccount(phoneAccount.getAccountHandle(), true);
                 }
-                startSipServiceForProfile(profile, sipManager, context, isReceivingCalls);
+                profilesToStart.add(profile);
             }
         }
 
+        List<Future<?>> starts = new ArrayList<>(profilesToStart.size());
+        for (SipProfile profile : profilesToStart) {
+            starts.add(submitStartSipServiceForProfile(
+                    profile, sipManager, context, isReceivingCalls));
+        }
+        for (int i = 0; i < starts.size(); i++) {
+            waitForStart(starts.get(i), profilesToStart.get(i));
+        }
+
         if (primaryProfile != null) {
             // Remove the primary account shared preference, ensuring the migration does not
             // occur again in the future.
@@ -259,9 +305,36 @@ public final class SipAccountRegistry {
         }
     }
 
+    private Future<?> submitStartSipServiceForProfile(final SipProfile profile,
+            final SipManager sipManager, final Context context, final boolean isReceivingCalls) {
+        return mSipServiceExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                startSipServiceForProfile(profile, sipManager, context, isReceivingCalls);
+            }
+        });
+    }
+
+    /**
+     * Waits for the SIP service of a profile to be started. A profile which takes longer than
+     * {@link #START_TIMEOUT_MILLIS} is left to finish starting in the background.
+     */
+    private void waitForStart(Future<?> start, SipProfile profile) {
+        try {
+            start.get(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log("waitForStart, timed out starting profile: " + profile.getProfileName());
+        } catch (ExecutionException e) {
+            log("waitForStart, failed to start profile: " + profile.getProfileName()
+                    + ", exception: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Starts the SIP service for a sip profile and saves a new {@code AccountEntry} in the
-     * registry.
+     * registry. Starting is retried up to {@link #MAX_START_ATTEMPTS} times.
      *
      * @param profile The {@link SipProfile} to start.
      * @param sipManager The SIP manager.
@@ -271,12 +344,22 @@ public final class SipAccountRegistry {
      */
     private void startSipServiceForProfile(SipProfile profile, SipManager sipManager,
             Context context, boolean isReceivingCalls) {
-        removeSipProfile(profile.getUriString());
+        String profileName = profile.getProfileName();
+        mAccounts.remove(profileName);
 
+        long startMillis = SystemClock.elapsedRealtime();
         AccountEntry entry = new AccountEntry(profile);
-        if (entry.startSipService(sipManager, context, isReceivingCalls)) {
-            mAccounts.add(entry);
+        for (int attempt = 1; attempt <= MAX_START_ATTEMPTS; attempt++) {
+            if (entry.startSipService(sipManager, context, isReceivingCalls)) {
+                mAccounts.put(profileName, entry);
+                log("startSipServiceForProfile, started profile: " + profileName + " in "
+                        + (SystemClock.elapsedRealtime() - startMillis) + "ms, attempts: "
+                        + attempt);
+                return;
+            }
         }
+        log("startSipServiceForProfile, gave up on profile: " + profileName + " after "
+                + (SystemClock.elapsedRealtime() - startMillis) + "ms");
     }
 
     /**
@@ -286,12 +369,14 @@ public final class SipAccountRegistry {
      * @return The {@link AccountEntry}, or {@code null} is it was not found.
      */
     private AccountEntry getAccountEntry(String sipProfileName) {
-        for (AccountEntry entry : mAccounts) {
-            if (Objects.equals(sipProfileName, entry.getProfile().getProfileName())) {
-                return entry;
-            }
-        }
-        return null;
+        return sipProfileName == null ? null : mAccounts.get(sipProfileName);
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private void log(String message) {
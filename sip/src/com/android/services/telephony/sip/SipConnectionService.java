@@ -25,6 +25,7 @@ import android.net.sip.SipAudioCall;
 import android.net.sip.SipException;
 import android.net.sip.SipManager;
 import android.net.sip.SipProfile;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.ResultReceiver;
@@ -34,6 +35,7 @@ import android.telecom.ConnectionService;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.DisconnectCause;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.telephony.CallStateException;
@@ -41,7 +43,6 @@ import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.sip.SipPhone;
 import com.android.services.telephony.DisconnectCauseUtil;
 
-import java.util.List;
 import java.util.Objects;
 
 public final class SipConnectionService extends ConnectionService {
@@ -55,13 +56,40 @@ public final class SipConnectionService extends ConnectionService {
     private SipProfileDb mSipProfileDb;
     private Handler mHandler;
 
+    /**
+     * The SIP phones created so far, keyed by the URI of their profile. A phone is kept for as
+     * long as its profile exists, so that later calls on the profile can reuse it. Only accessed
+     * on the main thread.
+     */
+    private final ArrayMap<String, SipPhone> mPhonesByUri = new ArrayMap<String, SipPhone>();
+
+    private final SipProfileDb.Listener mProfileListener = new SipProfileDb.Listener() {
+        @Override
+        public void onProfilesChanged() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    removePhonesForDeletedProfiles();
+                }
+            });
+        }
+    };
+
     @Override
     public void onCreate() {
-        mSipProfileDb = new SipProfileDb(this);
+        mSipProfileDb = SipProfileDb.getInstance(this);
         mHandler = new Handler();
+        mSipProfileDb.addListener(mProfileListener);
         super.onCreate();
     }
 
+    @Override
+    public void onDestroy() {
+        mSipProfileDb.removeListener(mProfileListener);
+        mPhonesByUri.clear();
+        super.onDestroy();
+    }
+
     @Override
     public Connection onCreateOutgoingConnection(
             PhoneAccountHandle connectionManagerAccount,
@@ -111,6 +139,23 @@ public final class SipConnectionService extends ConnectionService {
             // The ID used for SIP-based phone account is the SIP profile Uri. Use it to find
             // the actual profile.
             String profileName = accountHandle.getId();
+            if (mSipProfileDb.isLoaded()) {
+                // The profiles are in memory, so set the call up right away.
+                SipProfile profile = mSipProfileDb.retrieveSipProfileFromName(profileName);
+                com.android.internal.telephony.Connection chosenConnection =
+                        profile == null ? null : createConnectionForProfile(profile, request);
+                if (profile == null) {
+                    connection.setDisconnected(DisconnectCauseUtil.toTelecomDisconnectCause(
+                            DisconnectCause.OUTGOING_FAILURE, "SIP profile not found."));
+                } else if (chosenConnection == null) {
+                    connection.setDisconnected(DisconnectCauseUtil.toTelecomDisconnectCause(
+                            DisconnectCause.OUTGOING_FAILURE, "Connection failed."));
+                } else {
+                    if (VERBOSE) log("initializing connection");
+                    connection.initialize(chosenConnection);
+                }
+                return connection;
+            }
             findProfile(profileName, new IProfileFinderCallback() {
                 @Override
                 public void onFound(SipProfile profile) {
@@ -201,27 +246,17 @@ public final class SipConnectionService extends ConnectionService {
     }
 
     /**
-     * Searched for the specified profile in the SIP profile database.  This can take a long time
-     * in communicating with the database, so it is done asynchronously with a separate thread and a
-     * callback interface.
+     * Searched for the specified profile in the SIP profile database.  This is only needed until
+     * the database has been read from disk, which can take a long time, so it is done
+     * asynchronously on a shared background thread and a callback interface.
      */
     private void findProfile(final String profileName, final IProfileFinderCallback callback) {
         if (VERBOSE) log("findProfile");
-        new Thread(new Runnable() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
             @Override
             public void run() {
-                SipProfile profileToUse = null;
-                List<SipProfile> profileList = mSipProfileDb.retrieveSipProfileList();
-                if (profileList != null) {
-                    for (SipProfile profile : profileList) {
-                        if (Objects.equals(profileName, profile.getProfileName())) {
-                            profileToUse = profile;
-                            break;
-                        }
-                    }
-                }
-
-                final SipProfile profileFound = profileToUse;
+                final SipProfile profileFound =
+                        mSipProfileDb.retrieveSipProfileFromName(profileName);
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
@@ -229,27 +264,36 @@ public final class SipConnectionService extends ConnectionService {
                     }
                 });
             }
-        }).start();
+        });
     }
 
     private SipPhone findPhoneForProfile(SipProfile profile) {
-        if (VERBOSE) log("findPhoneForProfile, profile: " + profile);
-        for (Connection connection : getAllConnections()) {
-            if (connection instanceof SipConnection) {
-                SipPhone phone = ((SipConnection) connection).getPhone();
-                if (phone != null && phone.getSipUri().equals(profile.getUriString())) {
-                    if (VERBOSE) log("findPhoneForProfile, found existing phone: " + phone);
-                    return phone;
-                }
+        SipPhone phone = mPhonesByUri.get(profile.getUriString());
+        if (VERBOSE) log("findPhoneForProfile, profile: " + profile + ", phone: " + phone);
+        return phone;
+    }
+
+    /**
+     * Drops the phones whose profile has been deleted. A dropped phone which is still in a call
+     * keeps working for that call; it is just no longer reused.
+     */
+    private void removePhonesForDeletedProfiles() {
+        for (int i = mPhonesByUri.size() - 1; i >= 0; i--) {
+            String uri = mPhonesByUri.keyAt(i);
+            if (mSipProfileDb.retrieveSipProfileFromUri(uri) == null) {
+                if (VERBOSE) log("removePhonesForDeletedProfiles, removing phone for " + uri);
+                mPhonesByUri.removeAt(i);
             }
         }
-        if (VERBOSE) log("findPhoneForProfile, no phone found");
-        return null;
     }
 
     private SipPhone createPhoneForProfile(SipProfile profile) {
         if (VERBOSE) log("createPhoneForProfile, profile: " + profile);
-        return PhoneFactory.makeSipPhone(profile.getUriString());
+        SipPhone phone = PhoneFactory.makeSipPhone(profile.getUriString());
+        if (phone != null) {
+            mPhonesByUri.put(profile.getUriString(), phone);
+        }
+        return phone;
     }
 
     private com.android.internal.telephony.Connection startCallWithPhone(
@@ -152,7 +152,7 @@ public class SipEditor extends PreferenceActivity
         super.onCreate(savedInstanceState);
 
         mSharedPreferences = new SipSharedPreferences(this);
-        mProfileDb = new SipProfileDb(this);
+        mProfileDb = SipProfileDb.getInstance(this);
         mSipAccountRegistry = SipAccountRegistry.getInstance();
 
         setContentView(R.layout.sip_settings_ui);
@@ -46,7 +46,7 @@ public final class SipPhoneAccountSettingsActivity extends Activity {
             Log.i(TAG, "" + accountHandle);
 
             if (accountHandle != null) {
-                SipProfileDb profileDb = new SipProfileDb(this);
+                SipProfileDb profileDb = SipProfileDb.getInstance(this);
                 String profileName = SipUtil.getSipProfileNameFromPhoneAccount(accountHandle);
                 SipProfile profile = profileDb.retrieveSipProfileFromName(profileName);
                 if (profile != null) {
@@ -23,121 +23,438 @@ import android.net.sip.SipProfile;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Utility class that helps perform operations on the SipProfile database.
+ * Process-wide store of the SIP profiles.
+ *
+ * The profiles are loaded once into memory, indexed by profile name and by SIP URI, so reads
+ * never touch the disk. On disk they live in a single versioned file which holds a log of save
+ * and delete records; every change appends one record, and the log is rewritten compactly once
+ * it holds too many stale records. Profiles stored by older versions, one Java-serialized object
+ * per directory, are migrated into the new file on first load.
+ *
+ * Profiles are copied on the way in and out, so callers may modify the ones they get, for example
+ * to set their calling uid, without changing the stored state.
  */
 class SipProfileDb {
     private static final String PREFIX = "[SipProfileDb] ";
     private static final boolean VERBOSE = false; /* STOP SHIP if true */
 
+    // Legacy storage, only read to migrate the profiles into STORE_FILE.
     private static final String PROFILES_DIR = "/profiles/";
     private static final String PROFILE_OBJ_FILE = ".pobj";
 
-    private static final String SCHEME_PREFIX = "sip:";
+    private static final String STORE_FILE = "sip_profiles.db";
+    private static final int STORE_MAGIC = 0x53495050;
+    // Version 2 added the calling uid to saved profiles.
+    private static final int STORE_VERSION = 2;
 
-    private String mProfilesDirectory;
-    private SipSharedPreferences mSipSharedPreferences;
-    private int mProfilesCount = -1;
+    private static final byte RECORD_SAVE = 1;
+    private static final byte RECORD_DELETE = 2;
 
-    public SipProfileDb(Context context) {
-        mProfilesDirectory = context.getFilesDir().getAbsolutePath() + PROFILES_DIR;
-        mSipSharedPreferences = new SipSharedPreferences(context);
+    /** The log is compacted once it holds this many more records than there are profiles. */
+    private static final int MAX_STALE_RECORDS = 32;
+
+    /**
+     * Notified after a profile has been saved or deleted.
+     */
+    interface Listener {
+        void onProfilesChanged();
     }
 
-    public void deleteProfile(SipProfile p) {
-        synchronized(SipProfileDb.class) {
-            deleteProfile(new File(mProfilesDirectory + p.getProfileName()));
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
-            mSipSharedPreferences.setProfilesCount(--mProfilesCount);
+    /**
+     * Changes a profile as part of {@link #updateAllProfiles}.
+     */
+    interface ProfileUpdater {
+        /**
+         * @return The updated profile, which must keep the same profile name, or {@code p}
+         *         itself if it does not need to change.
+         */
+        SipProfile update(SipProfile p);
+    }
+
+    private static SipProfileDb sInstance;
+
+    private final File mStoreFile;
+    private final String mLegacyProfilesDirectory;
+    private final SipSharedPreferences mSipSharedPreferences;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // The fields below are guarded by this. mProfilesByName is null until the store is loaded.
+    private LinkedHashMap<String, SipProfile> mProfilesByName;
+    private final HashMap<String, SipProfile> mProfilesByUri = new HashMap<String, SipProfile>();
+    private int mRecordCount;
+
+    public static synchronized SipProfileDb getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SipProfileDb(context.getApplicationContext());
         }
+        return sInstance;
     }
 
-    private void deleteProfile(File file) {
-        if (file.isDirectory()) {
-            for (File child : file.listFiles()) deleteProfile(child);
+    private SipProfileDb(Context context) {
+        mStoreFile = new File(context.getFilesDir(), STORE_FILE);
+        mLegacyProfilesDirectory = context.getFilesDir().getAbsolutePath() + PROFILES_DIR;
+        mSipSharedPreferences = new SipSharedPreferences(context);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public void deleteProfile(SipProfile p) {
+        synchronized (this) {
+            ensureLoaded();
+            SipProfile removed = mProfilesByName.remove(p.getProfileName());
+            if (removed == null) {
+                return;
+            }
+            mProfilesByUri.remove(removed.getUriString());
+            try {
+                appendRecord(RECORD_DELETE, p);
+            } catch (IOException e) {
+                log("deleteProfile, exception: " + e);
+                rewriteStore();
+            }
+            mSipSharedPreferences.setProfilesCount(mProfilesByName.size());
         }
-        file.delete();
+        notifyListeners();
     }
 
     public void saveProfile(SipProfile p) throws IOException {
-        synchronized(SipProfileDb.class) {
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
-            File f = new File(mProfilesDirectory + p.getProfileName());
-            if (!f.exists()) f.mkdirs();
-            AtomicFile atomicFile = new AtomicFile(new File(f, PROFILE_OBJ_FILE));
-            FileOutputStream fos = null;
-            ObjectOutputStream oos = null;
+        p = copy(p);
+        synchronized (this) {
+            ensureLoaded();
+            SipProfile replaced = mProfilesByName.put(p.getProfileName(), p);
             try {
-                fos = atomicFile.startWrite();
-                oos = new ObjectOutputStream(fos);
-                oos.writeObject(p);
-                oos.flush();
-                mSipSharedPreferences.setProfilesCount(++mProfilesCount);
-                atomicFile.finishWrite(fos);
+                appendRecord(RECORD_SAVE, p);
             } catch (IOException e) {
-                atomicFile.failWrite(fos);
+                if (replaced != null) {
+                    mProfilesByName.put(p.getProfileName(), replaced);
+                } else {
+                    mProfilesByName.remove(p.getProfileName());
+                }
+                // Drop whatever part of the record made it to the file, so that the records
+                // appended after it can still be read back.
+                rewriteStore();
                 throw e;
-            } finally {
-                if (oos != null) oos.close();
             }
+            if (replaced != null) {
+                mProfilesByUri.remove(replaced.getUriString());
+            }
+            mProfilesByUri.put(p.getUriString(), p);
+            mSipSharedPreferences.setProfilesCount(mProfilesByName.size());
         }
+        notifyListeners();
     }
 
-    public int getProfilesCount() {
-        return (mProfilesCount < 0) ?  mSipSharedPreferences.getProfilesCount() : mProfilesCount;
-    }
+    /**
+     * Applies the updater to every profile and persists the result with a single write of the
+     * store. Listeners are notified once, and only if a profile changed. Either all the updates
+     * are stored or, if the write fails, none of them are.
+     */
+    public void updateAllProfiles(ProfileUpdater updater) throws IOException {
+        synchronized (this) {
+            ensureLoaded();
+            LinkedHashMap<String, SipProfile> oldProfiles = mProfilesByName;
+            LinkedHashMap<String, SipProfile> newProfiles =
+                    new LinkedHashMap<String, SipProfile>(oldProfiles.size());
+            boolean changed = false;
+            for (SipProfile p : oldProfiles.values()) {
+                SipProfile updated = updater.update(p);
+                if (!p.getProfileName().equals(updated.getProfileName())) {
+                    throw new IllegalArgumentException(
+                            "Profile name changed from " + p.getProfileName());
+                }
+                if (updated != p) {
+                    updated = copy(updated);
+                    changed = true;
+                }
+                newProfiles.put(updated.getProfileName(), updated);
+            }
+            if (!changed) {
+                return;
+            }
 
-    public List<SipProfile> retrieveSipProfileList() {
-        synchronized(SipProfileDb.class) {
-            return retrieveSipProfileListInternal();
+            mProfilesByName = newProfiles;
+            if (!rewriteStore()) {
+                mProfilesByName = oldProfiles;
+                throw new IOException("Failed to write " + mStoreFile);
+            }
+            mProfilesByUri.clear();
+            for (SipProfile p : newProfiles.values()) {
+                mProfilesByUri.put(p.getUriString(), p);
+            }
         }
+        notifyListeners();
     }
 
-    private List<SipProfile> retrieveSipProfileListInternal() {
-        List<SipProfile> sipProfileList = Collections.synchronizedList(
-                new ArrayList<SipProfile>());
+    /**
+     * @return {@code true} if the profiles have been loaded, so that reads won't touch the disk.
+     */
+    public synchronized boolean isLoaded() {
+        return mProfilesByName != null;
+    }
 
-        File root = new File(mProfilesDirectory);
-        String[] dirs = root.list();
-        if (dirs == null) return sipProfileList;
-        for (String dir : dirs) {
-            SipProfile p = retrieveSipProfileFromName(dir);
-            if (p == null) continue;
-            sipProfileList.add(p);
+    public synchronized int getProfilesCount() {
+        ensureLoaded();
+        return mProfilesByName.size();
+    }
+
+    /**
+     * @return A new list holding copies of all the profiles, which the caller is free to modify.
+     */
+    public synchronized List<SipProfile> retrieveSipProfileList() {
+        ensureLoaded();
+        List<SipProfile> profiles = new ArrayList<SipProfile>(mProfilesByName.size());
+        for (SipProfile p : mProfilesByName.values()) {
+            profiles.add(copy(p));
         }
-        mProfilesCount = sipProfileList.size();
-        mSipSharedPreferences.setProfilesCount(mProfilesCount);
-        return sipProfileList;
+        return profiles;
     }
 
-    public SipProfile retrieveSipProfileFromName(String name) {
+    public synchronized SipProfile retrieveSipProfileFromName(String name) {
         if (TextUtils.isEmpty(name)) {
             return null;
         }
+        ensureLoaded();
+        return copy(mProfilesByName.get(name));
+    }
+
+    public synchronized SipProfile retrieveSipProfileFromUri(String uriString) {
+        if (TextUtils.isEmpty(uriString)) {
+            return null;
+        }
+        ensureLoaded();
+        return copy(mProfilesByUri.get(uriString));
+    }
+
+    private static SipProfile copy(SipProfile p) {
+        return p == null ? null : new SipProfile.Builder(p).build();
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : mListeners) {
+            listener.onProfilesChanged();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mProfilesByName != null) {
+            return;
+        }
+        mProfilesByName = new LinkedHashMap<String, SipProfile>();
+
+        boolean needsRewrite;
+        if (mStoreFile.exists()) {
+            needsRewrite = !readStore();
+        } else {
+            migrateLegacyProfiles();
+            needsRewrite = true;
+        }
+        for (SipProfile p : mProfilesByName.values()) {
+            mProfilesByUri.put(p.getUriString(), p);
+        }
+        if (needsRewrite && rewriteStore()) {
+            deleteProfile(new File(mLegacyProfilesDirectory));
+        }
+        mSipSharedPreferences.setProfilesCount(mProfilesByName.size());
+        if (VERBOSE) log("loaded " + mProfilesByName.size() + " profiles");
+    }
+
+    /**
+     * Replays the store file into mProfilesByName.
+     *
+     * @return {@code false} if the file was damaged and should be rewritten.
+     */
+    private boolean readStore() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStoreFile)));
+            if (in.readInt() != STORE_MAGIC) {
+                log("readStore, unknown store format");
+                return false;
+            }
+            int version = in.readInt();
+            if (version < 1 || version > STORE_VERSION) {
+                log("readStore, unknown store version " + version);
+                return false;
+            }
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    // Older versions are rewritten, so that records can be appended.
+                    return version == STORE_VERSION;
+                }
+                if (type == RECORD_SAVE) {
+                    SipProfile p = readProfile(in, version);
+                    mProfilesByName.put(p.getProfileName(), p);
+                } else if (type == RECORD_DELETE) {
+                    mProfilesByName.remove(in.readUTF());
+                } else {
+                    log("readStore, unknown record type " + type);
+                    return false;
+                }
+                mRecordCount++;
+            }
+        } catch (IOException | ParseException | IllegalArgumentException e) {
+            // Most likely a record cut short by a crash while it was appended.
+            log("readStore, exception: " + e);
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Rewrites the store file with one record per profile.
+     *
+     * @return {@code true} if the file was written.
+     */
+    private boolean rewriteStore() {
+        AtomicFile atomicFile = new AtomicFile(mStoreFile);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(STORE_MAGIC);
+            out.writeInt(STORE_VERSION);
+            for (SipProfile p : mProfilesByName.values()) {
+                out.writeByte(RECORD_SAVE);
+                writeProfile(out, p);
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+            mRecordCount = mProfilesByName.size();
+            return true;
+        } catch (IOException e) {
+            log("rewriteStore, exception: " + e);
+            atomicFile.failWrite(fos);
+            return false;
+        }
+    }
+
+    /**
+     * Persists a change which has already been applied to mProfilesByName, either by appending
+     * a record or, once the log holds too many stale records, by compacting it.
+     */
+    private void appendRecord(byte type, SipProfile p) throws IOException {
+        if (mRecordCount - mProfilesByName.size() >= MAX_STALE_RECORDS && rewriteStore()) {
+            return;
+        }
+
+        FileOutputStream fos = new FileOutputStream(mStoreFile, true /* append */);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeByte(type);
+            if (type == RECORD_SAVE) {
+                writeProfile(out, p);
+            } else {
+                out.writeUTF(p.getProfileName());
+            }
+            out.flush();
+            fos.getFD().sync();
+            mRecordCount++;
+        } finally {
+            fos.close();
+        }
+    }
 
-        File root = new File(mProfilesDirectory);
-        File f = new File(new File(root, name), PROFILE_OBJ_FILE);
-        if (f.exists()) {
+    private static void writeProfile(DataOutputStream out, SipProfile p) throws IOException {
+        out.writeUTF(p.getProfileName());
+        out.writeUTF(p.getUserName());
+        out.writeUTF(p.getSipDomain());
+        writeNullableString(out, p.getPassword());
+        writeNullableString(out, p.getProxyAddress());
+        writeNullableString(out, p.getProtocol());
+        writeNullableString(out, p.getDisplayName());
+        writeNullableString(out, p.getAuthUserName());
+        out.writeInt(p.getPort());
+        out.writeBoolean(p.getSendKeepAlive());
+        out.writeBoolean(p.getAutoRegistration());
+        out.writeInt(p.getCallingUid());
+    }
+
+    private static SipProfile readProfile(DataInputStream in, int version)
+            throws IOException, ParseException {
+        String profileName = in.readUTF();
+        SipProfile.Builder builder = new SipProfile.Builder(in.readUTF(), in.readUTF())
+                .setProfileName(profileName);
+        String password = readNullableString(in);
+        if (password != null) builder.setPassword(password);
+        String proxyAddress = readNullableString(in);
+        if (proxyAddress != null) builder.setOutboundProxy(proxyAddress);
+        String protocol = readNullableString(in);
+        if (protocol != null) builder.setProtocol(protocol);
+        String displayName = readNullableString(in);
+        if (displayName != null) builder.setDisplayName(displayName);
+        String authUserName = readNullableString(in);
+        if (authUserName != null) builder.setAuthUserName(authUserName);
+        SipProfile p = builder.setPort(in.readInt())
+                .setSendKeepAlive(in.readBoolean())
+                .setAutoRegistration(in.readBoolean())
+                .build();
+        if (version >= 2) {
+            p.setCallingUid(in.readInt());
+        }
+        return p;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Reads the profiles stored by older versions, one serialized object per directory.
+     */
+    private void migrateLegacyProfiles() {
+        File root = new File(mLegacyProfilesDirectory);
+        String[] dirs = root.list();
+        if (dirs == null) return;
+        for (String dir : dirs) {
+            File f = new File(new File(root, dir), PROFILE_OBJ_FILE);
+            if (!f.exists()) continue;
             try {
                 SipProfile p = deserialize(f);
-                if (p != null && name.equals(p.getProfileName())) {
-                    return p;
+                if (p != null && dir.equals(p.getProfileName())) {
+                    mProfilesByName.put(dir, p);
                 }
             } catch (IOException e) {
-                log("retrieveSipProfileListInternal, exception: " + e);
+                log("migrateLegacyProfiles, exception: " + e);
             }
         }
-        return null;
+        log("migrating " + mProfilesByName.size() + " profiles");
     }
 
     private SipProfile deserialize(File profileObjectFile) throws IOException {
@@ -155,6 +472,23 @@ class SipProfileDb {
         return null;
     }
 
+    private void deleteProfile(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) deleteProfile(child);
+        }
+        file.delete();
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+    }
+
     private static void log(String msg) {
         Log.d(SipUtil.LOG_TAG, PREFIX + msg);
     }
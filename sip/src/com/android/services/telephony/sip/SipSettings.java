@@ -134,7 +134,7 @@ public class SipSettings extends PreferenceActivity {
 
         mSipManager = SipManager.newInstance(this);
         mSipSharedPreferences = new SipSharedPreferences(this);
-        mProfileDb = new SipProfileDb(this);
+        mProfileDb = SipProfileDb.getInstance(this);
 
         mPackageManager = getPackageManager();
         setContentView(R.layout.sip_settings_ui);
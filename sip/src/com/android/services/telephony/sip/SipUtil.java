@@ -34,7 +34,6 @@ import android.util.Log;
 import com.android.phone.R;
 
 import java.util.ArrayList;
-import java.util.List;
 
 public class SipUtil {
     static final String LOG_TAG = "SIP";
@@ -147,28 +146,25 @@ public class SipUtil {
      *
      * @param isEnabled {@code True} if receiving incoming SIP calls.
      */
-    public static void useSipToReceiveIncomingCalls(Context context, boolean isEnabled) {
-        SipProfileDb profileDb = new SipProfileDb(context);
+    public static void useSipToReceiveIncomingCalls(Context context, final boolean isEnabled) {
+        SipProfileDb profileDb = SipProfileDb.getInstance(context);
 
         // Mark all profiles as auto-register if we are now receiving calls.
-        List<SipProfile> sipProfileList = profileDb.retrieveSipProfileList();
-        for (SipProfile p : sipProfileList) {
-            updateAutoRegistrationFlag(p, profileDb, isEnabled);
-        }
-    }
-
-    private static void updateAutoRegistrationFlag(
-            SipProfile p, SipProfileDb db, boolean isEnabled) {
-        SipProfile newProfile = new SipProfile.Builder(p).setAutoRegistration(isEnabled).build();
-
         try {
-            // Note: The profile is updated, but the associated PhoneAccount is left alone since
-            // the only thing that changed is the auto-registration flag, which is not part of the
-            // PhoneAccount.
-            db.deleteProfile(p);
-            db.saveProfile(newProfile);
+            // Note: The profiles are updated, but the associated PhoneAccounts are left alone
+            // since the only thing that changed is the auto-registration flag, which is not part
+            // of the PhoneAccount.
+            profileDb.updateAllProfiles(new SipProfileDb.ProfileUpdater() {
+                @Override
+                public SipProfile update(SipProfile p) {
+                    if (p.getAutoRegistration() == isEnabled) {
+                        return p;
+                    }
+                    return new SipProfile.Builder(p).setAutoRegistration(isEnabled).build();
+                }
+            });
         } catch (Exception e) {
-            Log.d(LOG_TAG, "updateAutoRegistrationFlag, exception: " + e);
+            Log.d(LOG_TAG, "useSipToReceiveIncomingCalls, exception: " + e);
         }
     }
 }
@@ -37,6 +37,7 @@ import android.os.AsyncResult;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -90,6 +91,15 @@ public class CallBarring extends PreferenceActivity implements DialogInterface.O
     private static final int EVENT_CB_CANCEL_ALL = 300;
     private static final int EVENT_CB_SET_COMPLETE = 400;
     private static final int EVENT_CB_CHANGE_PSW = 500;
+    private static final int EVENT_CB_QUERY_TIMEOUT = 600;
+
+    // The facilities queried when the screen is opened, in the order their results are applied.
+    private static final int[] QUERY_FACILITIES = { CB_BAOC, CB_BAOIC, CB_BAOICxH, CB_BAIC,
+            CB_BAICr };
+    // Set to false to query the facilities one after the other, for networks which can't take
+    // several supplementary service queries at once.
+    private static final String PROPERTY_PARALLEL_QUERY = "persist.radio.cb_parallel_query";
+    private static final long QUERY_TIMEOUT_MILLIS = 30 * 1000;
 
     // dialog id for create
     private static final int BUSY_DIALOG = 100;
@@ -125,6 +135,14 @@ public class CallBarring extends PreferenceActivity implements DialogInterface.O
 
     private Phone mPhone;
 
+    // State of the running query for all options. Responses are kept until all of them are in
+    // and are then applied in QUERY_FACILITIES order, so that the result does not depend on the
+    // order they arrive in. Responses to an earlier query are told apart by the generation.
+    private int mQueryGeneration = 0;
+    private int mQueryNext;
+    private int mQueryPending;
+    private final AsyncResult[] mQueryResults = new AsyncResult[CB_BA_ALL];
+
     private ListPreference mListOutgoing = null;
     private ListPreference mListIncoming = null;
     private EditPinPreference mDialogCancelAll = null;
@@ -221,11 +239,39 @@ public class CallBarring extends PreferenceActivity implements DialogInterface.O
         outState.putString(ERROR_KEY, mError);
     }
 
-    // Request to begin querying for call barring.
+    // Request to begin querying for call barring. All the facilities are queried at once,
+    // unless PROPERTY_PARALLEL_QUERY turns that off.
     private void queryAllCBOptions() {
         showDialog(INITIAL_BUSY_DIALOG);
-        mPhone.getCallBarringOption (CommandsInterface.CB_FACILITY_BAOC, "",
-                Message.obtain(mGetAllCBOptionsComplete, EVENT_CB_QUERY_ALL, CB_BAOC, 0));
+        mQueryGeneration++;
+        mQueryNext = 0;
+        mQueryPending = QUERY_FACILITIES.length;
+        for (int i = 0; i < mQueryResults.length; i++) {
+            mQueryResults[i] = null;
+        }
+
+        boolean parallel = SystemProperties.getBoolean(PROPERTY_PARALLEL_QUERY, true);
+        do {
+            requestNextCBOption();
+        } while (parallel && mQueryNext < QUERY_FACILITIES.length);
+    }
+
+    private void requestNextCBOption() {
+        int facility = QUERY_FACILITIES[mQueryNext++];
+        mPhone.getCallBarringOption(getBarringFacility(facility), "",
+                Message.obtain(mGetAllCBOptionsComplete, EVENT_CB_QUERY_ALL, facility,
+                        mQueryGeneration));
+        mGetAllCBOptionsComplete.sendMessageDelayed(
+                mGetAllCBOptionsComplete.obtainMessage(EVENT_CB_QUERY_TIMEOUT, facility,
+                        mQueryGeneration),
+                QUERY_TIMEOUT_MILLIS);
+    }
+
+    // Stops the running query for all options after one of its steps failed.
+    private void abortCBQuery() {
+        mQueryGeneration++;
+        mGetAllCBOptionsComplete.removeMessages(EVENT_CB_QUERY_TIMEOUT);
+        removeDialog(INITIAL_BUSY_DIALOG);
     }
 
     // callback after each step of querying for all options.
@@ -237,46 +283,53 @@ public class CallBarring extends PreferenceActivity implements DialogInterface.O
 
             switch (msg.what) {
                 case EVENT_CB_CANCEL_QUERY:
+                    mQueryGeneration++;
                     removeMessages(EVENT_CB_QUERY_ALL);
+                    removeMessages(EVENT_CB_QUERY_TIMEOUT);
                     removeDialog(INITIAL_BUSY_DIALOG);
                     finish();
                     break;
+                case EVENT_CB_QUERY_TIMEOUT:
+                    if (msg.arg2 == mQueryGeneration && mQueryResults[msg.arg1] == null) {
+                        Log.e(LOG_TAG, "Timed out querying call barring facility "
+                                + getBarringFacility(msg.arg1));
+                        abortCBQuery();
+                    }
+                    break;
                 case EVENT_CB_QUERY_ALL:
-                    status = handleGetCBMessage(ar, msg.arg1);
-                    if (status != MSG_OK) {
-                        removeDialog(INITIAL_BUSY_DIALOG);
+                    if (msg.arg2 != mQueryGeneration) {
+                        // Response to a query which was cancelled or has failed.
+                        break;
+                    }
+                    if (ar.exception != null || ar.userObj instanceof Throwable) {
+                        // Fail right away rather than waiting for the other facilities.
+                        handleGetCBMessage(ar, msg.arg1);
+                        abortCBQuery();
                         Log.d("CallBarring","EXCEPTION_ERROR!");
                         return;
                     }
 
-                    switch (msg.arg1) {
-                        case CB_BAOC:
-                            mPhone.getCallBarringOption (CommandsInterface.CB_FACILITY_BAOIC, "",
-                                    Message.obtain(mGetAllCBOptionsComplete,
-                                            EVENT_CB_QUERY_ALL, CB_BAOIC, 0));
-                            break;
-                        case CB_BAOIC:
-                            mPhone.getCallBarringOption (CommandsInterface.CB_FACILITY_BAOICxH, "",
-                                    Message.obtain(mGetAllCBOptionsComplete,
-                                            EVENT_CB_QUERY_ALL, CB_BAOICxH, 0));
-                            break;
-                        case CB_BAOICxH:
-                            mPhone.getCallBarringOption (CommandsInterface.CB_FACILITY_BAIC, "",
-                                    Message.obtain(mGetAllCBOptionsComplete,
-                                            EVENT_CB_QUERY_ALL, CB_BAIC, 0));
-                            break;
-                        case CB_BAIC:
-                            mPhone.getCallBarringOption (CommandsInterface.CB_FACILITY_BAICr, "",
-                                    Message.obtain(mGetAllCBOptionsComplete,
-                                            EVENT_CB_QUERY_ALL, CB_BAICr, 0));
-                            break;
-                        case CB_BAICr:
-                            mCBDataStale = false;
-                            syncUiWithState();
-                            removeDialog(INITIAL_BUSY_DIALOG);
-                            break;
-                        default:
+                    mQueryResults[msg.arg1] = ar;
+                    mQueryPending--;
+                    if (mQueryNext < QUERY_FACILITIES.length) {
+                        requestNextCBOption();
+                    }
+                    if (mQueryPending > 0) {
+                        break;
                     }
+
+                    for (int facility : QUERY_FACILITIES) {
+                        status = handleGetCBMessage(mQueryResults[facility], facility);
+                        if (status != MSG_OK) {
+                            abortCBQuery();
+                            Log.d("CallBarring","EXCEPTION_ERROR!");
+                            return;
+                        }
+                    }
+                    removeMessages(EVENT_CB_QUERY_TIMEOUT);
+                    mCBDataStale = false;
+                    syncUiWithState();
+                    removeDialog(INITIAL_BUSY_DIALOG);
                     break;
                 default:
                     break;
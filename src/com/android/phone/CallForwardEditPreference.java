@@ -54,6 +54,11 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
     CallForwardInfo callForwardInfo;
     private TimeConsumingPreferenceListener mTcpListener;
     boolean isTimerEnabled;
+    /**
+     * Bumped whenever the option is set, so that the replies of revalidation reads issued before
+     * are dropped instead of overwriting the new state.
+     */
+    private int mRevalidateGeneration;
 
     private IQtiImsInterface mImsInterface = null;
     boolean mAllowSetCallFwding = false;
@@ -87,6 +92,16 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
     }
 
     void init(TimeConsumingPreferenceListener listener, boolean skipReading, Phone phone) {
+        init(listener, skipReading, phone, false);
+    }
+
+    /**
+     * @param useCache Whether to show the state cached in {@link CallForwardInfoCache}, if any,
+     *         and read it again in the background. The listener isn't told about that read, so
+     *         the caller must not wait for it to finish before starting another one.
+     */
+    void init(TimeConsumingPreferenceListener listener, boolean skipReading, Phone phone,
+            boolean useCache) {
         mPhone = phone;
         mTcpListener = listener;
         isTimerEnabled = isTimerEnabled();
@@ -99,6 +114,22 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
                 intent.setPackage(IMS_SERVICE_PKG_NAME);
                 getContext().bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
             } else {
+                CallForwardInfo[] cfInfoArray =
+                        useCache ? CallForwardInfoCache.get(mPhone.getSubId(), reason) : null;
+                if (cfInfoArray != null) {
+                    // Show the state read last time right away, and read it again quietly.
+                    if (DBG) Log.d(LOG_TAG, "init: showing cached state, reason=" + reason);
+                    for (CallForwardInfo info : cfInfoArray) {
+                        if ((mServiceClass & info.serviceClass) != 0) {
+                            handleCallForwardResult(info);
+                        }
+                    }
+                    updateSummaryText();
+                    mPhone.getCallForwardingOption(reason,
+                            mHandler.obtainMessage(MyHandler.MESSAGE_GET_CF,
+                            mRevalidateGeneration, MyHandler.MESSAGE_REVALIDATE_CF, null));
+                    return;
+                }
                 mPhone.getCallForwardingOption(reason,
                         mHandler.obtainMessage(MyHandler.MESSAGE_GET_CF,
                         // unused in this case
@@ -182,6 +213,8 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
                 // Display no forwarding number while we're waiting for
                 // confirmation
                 setSummaryOn("");
+                CallForwardInfoCache.invalidate(mPhone.getSubId());
+                mRevalidateGeneration++;
 
                 // the interface of Phone.setCallForwardingOption has error:
                 // should be action, reason...
@@ -319,11 +352,13 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
 
     // Message protocol:
     // what: get vs. set
-    // arg1: action -- register vs. disable
-    // arg2: get vs. set for the preceding request
+    // arg1: action -- register vs. disable, or mRevalidateGeneration for a revalidation
+    // arg2: get vs. set for the preceding request, or revalidate for a get whose result is
+    //       already shown from the cache
     private class MyHandler extends Handler {
         static final int MESSAGE_GET_CF = 0;
         static final int MESSAGE_SET_CF = 1;
+        static final int MESSAGE_REVALIDATE_CF = 2;
 
         @Override
         public void handleMessage(Message msg) {
@@ -340,10 +375,24 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
         private void handleGetCFResponse(Message msg) {
             if (DBG) Log.d(LOG_TAG, "handleGetCFResponse: done");
 
-            mTcpListener.onFinished(CallForwardEditPreference.this, msg.arg2 != MESSAGE_SET_CF);
-
             AsyncResult ar = (AsyncResult) msg.obj;
 
+            if (msg.arg2 == MESSAGE_REVALIDATE_CF) {
+                // The listener never saw this read start, so it isn't told that it finished.
+                if (msg.arg1 != mRevalidateGeneration) {
+                    if (DBG) Log.d(LOG_TAG, "handleGetCFResponse: option set since, dropping");
+                    return;
+                }
+                if (ar.exception != null || ar.userObj instanceof Throwable) {
+                    // Keep showing the cached state rather than an error.
+                    if (DBG) Log.d(LOG_TAG, "handleGetCFResponse: revalidation failed");
+                    return;
+                }
+            } else {
+                mTcpListener.onFinished(CallForwardEditPreference.this,
+                        msg.arg2 != MESSAGE_SET_CF);
+            }
+
             callForwardInfo = null;
             if (ar.exception != null) {
                 if (DBG) Log.d(LOG_TAG, "handleGetCFResponse: ar.exception=" + ar.exception);
@@ -367,6 +416,9 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
                     setEnabled(false);
                     mTcpListener.onError(CallForwardEditPreference.this, RESPONSE_ERROR);
                 } else {
+                    if (!(ar.userObj instanceof Throwable)) {
+                        CallForwardInfoCache.put(mPhone.getSubId(), reason, cfInfoArray);
+                    }
                     for (int i = 0, length = cfInfoArray.length; i < length; i++) {
                         if (DBG) Log.d(LOG_TAG, "handleGetCFResponse, cfInfoArray[" + i + "]="
                                 + cfInfoArray[i]);
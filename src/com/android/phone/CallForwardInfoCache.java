@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.CallForwardInfo;
+
+/**
+ * The call forwarding options last read from the network, by subscription and reason.
+ *
+ * Lets the call forwarding screen show the known state at once while it is read again. Entries
+ * expire after {@link #TTL_MILLIS}, and all the entries of a subscription are dropped when its
+ * call forwarding indicator changes or when the user changes one of its options.
+ *
+ * The cached {@link CallForwardInfo} objects are shared and should be treated as read-only.
+ */
+final class CallForwardInfoCache {
+    private static final long TTL_MILLIS = 5 * 60 * 1000;
+
+    private static final class Entry {
+        final CallForwardInfo[] infos;
+        final long timeMillis;
+
+        Entry(CallForwardInfo[] infos, long timeMillis) {
+            this.infos = infos;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    /** Entries keyed by subscription id, then by call forwarding reason. Guarded by itself. */
+    private static final SparseArray<SparseArray<Entry>> sEntries =
+            new SparseArray<SparseArray<Entry>>();
+
+    /** This class is never instantiated. */
+    private CallForwardInfoCache() {
+    }
+
+    /**
+     * @return The options last read for the reason, or null if there are none or they expired.
+     */
+    static CallForwardInfo[] get(int subId, int reason) {
+        synchronized (sEntries) {
+            SparseArray<Entry> entries = sEntries.get(subId);
+            Entry entry = entries != null ? entries.get(reason) : null;
+            if (entry == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - entry.timeMillis > TTL_MILLIS) {
+                entries.remove(reason);
+                return null;
+            }
+            return entry.infos;
+        }
+    }
+
+    static void put(int subId, int reason, CallForwardInfo[] infos) {
+        synchronized (sEntries) {
+            SparseArray<Entry> entries = sEntries.get(subId);
+            if (entries == null) {
+                entries = new SparseArray<Entry>();
+                sEntries.put(subId, entries);
+            }
+            entries.put(reason, new Entry(infos, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Drops the options of every reason of the subscription.
+     */
+    static void invalidate(int subId) {
+        synchronized (sEntries) {
+            sEntries.remove(subId);
+        }
+    }
+}
@@ -125,7 +125,9 @@ class CallLogger {
         if ((o == null) || (o instanceof CallerInfo)) {
             ci = (CallerInfo) o;
         } else if (o instanceof Uri) {
-            ci = CallerInfo.getCallerInfo(mApplication.getApplicationContext(), (Uri) o);
+            // The lookup never ran for this connection. Don't query the contacts provider
+            // while logging the call; use whatever we already know about the number.
+            ci = CallerInfoResolver.getInstance().getCached(conn.getAddress());
         } else {
             ci = ((PhoneUtils.CallerInfoToken) o).currentInfo;
         }
@@ -44,7 +44,10 @@ import android.media.ToneGenerator;
 import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.SystemVibrator;
 import android.os.Vibrator;
@@ -54,7 +57,6 @@ import android.telecom.TelecomManager;
 import android.telephony.DisconnectCause;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.PhoneStateListener;
-import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
@@ -62,8 +64,6 @@ import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Log;
 
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -105,15 +105,20 @@ public class CallNotifier extends Handler {
     private Object mCallerInfoQueryStateGuard = new Object();
     private Map<Integer, CallNotifierPhoneStateListener> mPhoneStateListeners =
             new ArrayMap<Integer, CallNotifierPhoneStateListener>();
+    /** The sorted ids of the subscriptions in mPhoneStateListeners. */
+    private int[] mListenedSubIds = SubscriptionDiff.NO_SUB_IDS;
     private Map<Integer, Boolean> mCFIStatus = new ArrayMap<Integer, Boolean>();
     private PhoneGlobals mApplication;
     private CallManager mCM;
     private BluetoothHeadset mBluetoothHeadset;
     private CallLogger mCallLogger;
 
-    // ToneGenerator instance for playing SignalInfo tones
+    // ToneGenerator instance for playing SignalInfo tones; only used on the tone thread
     private ToneGenerator mSignalInfoToneGenerator;
 
+    // Plays all in-call and SignalInfo tones on a dedicated thread
+    private final InCallTonePlayer mInCallTonePlayer;
+
     // The tone volume relative to other sounds in the stream SignalInfo
     private static final int TONE_RELATIVE_VOLUME_SIGNALINFO = 80;
 
@@ -185,6 +190,11 @@ public class CallNotifier extends Handler {
         mSubscriptionManager = (SubscriptionManager) mApplication.getSystemService(
                 Context.TELEPHONY_SUBSCRIPTION_SERVICE);
 
+        HandlerThread toneThread = new HandlerThread("CallNotifierTones");
+        toneThread.start();
+        mInCallTonePlayer = new InCallTonePlayer(toneThread.getLooper());
+        mInCallTonePlayer.prewarm();
+
         callStateMonitor.addListener(this);
 
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
@@ -269,8 +279,7 @@ public class CallNotifier extends Handler {
             case CallStateMonitor.PHONE_ENHANCED_VP_ON:
                 if (DBG) log("PHONE_ENHANCED_VP_ON...");
                 if (!mVoicePrivacyState) {
-                    int toneToPlay = InCallTonePlayer.TONE_VOICE_PRIVACY;
-                    new InCallTonePlayer(toneToPlay).start();
+                    mInCallTonePlayer.play(InCallTonePlayer.TONE_VOICE_PRIVACY);
                     mVoicePrivacyState = true;
                 }
                 break;
@@ -278,8 +287,7 @@ public class CallNotifier extends Handler {
             case CallStateMonitor.PHONE_ENHANCED_VP_OFF:
                 if (DBG) log("PHONE_ENHANCED_VP_OFF...");
                 if (mVoicePrivacyState) {
-                    int toneToPlay = InCallTonePlayer.TONE_VOICE_PRIVACY;
-                    new InCallTonePlayer(toneToPlay).start();
+                    mInCallTonePlayer.play(InCallTonePlayer.TONE_VOICE_PRIVACY);
                     mVoicePrivacyState = false;
                 }
                 break;
@@ -480,8 +488,7 @@ public class CallNotifier extends Handler {
                     && ((mPreviousCdmaCallState == Call.State.DIALING)
                     ||  (mPreviousCdmaCallState == Call.State.ALERTING))) {
                 if (mIsCdmaRedialCall) {
-                    int toneToPlay = InCallTonePlayer.TONE_REDIAL;
-                    new InCallTonePlayer(toneToPlay).start();
+                    mInCallTonePlayer.play(InCallTonePlayer.TONE_REDIAL);
                 }
                 // Stop any signal info tone when call moves to ACTIVE state
                 stopSignalInfoTone();
@@ -511,7 +518,7 @@ public class CallNotifier extends Handler {
         if (DBG) Log.d(LOG_TAG, "updateCallNotifierRegistrationsAfterRadioTechnologyChange...");
 
         // Instantiate mSignalInfoToneGenerator
-        createSignalInfoToneGenerator();
+        mInCallTonePlayer.createSignalInfoToneGenerator();
     }
 
     private void onDisconnect(AsyncResult r) {
@@ -598,7 +605,7 @@ public class CallNotifier extends Handler {
             // the Phone UI at the moment the connection ends.
             if (toneToPlay != InCallTonePlayer.TONE_NONE) {
                 if (VDBG) log("- starting post-disconnect tone (" + toneToPlay + ")...");
-                new InCallTonePlayer(toneToPlay).start();
+                mInCallTonePlayer.play(toneToPlay);
 
                 // TODO: alternatively, we could start an InCallTonePlayer
                 // here with an "unlimited" tone length,
@@ -655,25 +662,23 @@ public class CallNotifier extends Handler {
     }
 
     /**
-     * Helper class to play tones through the earpiece (or speaker / BT)
-     * during a call, using the ToneGenerator.
+     * Plays tones through the earpiece (or speaker / BT) during a call, using the ToneGenerator.
      *
-     * To use, just instantiate a new InCallTonePlayer
-     * (passing in the TONE_* constant for the tone you want)
-     * and start() it.
+     * All tones are played from a single long-lived thread, and the ToneGenerator for each
+     * stream / volume combination is created once and then reused. To play a tone, just call
+     * {@link #playInCallTone} with the TONE_* constant for the tone you want. Starting a new tone
+     * stops the one which is currently playing.
      *
      * When we're done playing the tone, if the phone is idle at that
      * point, we'll reset the audio routing and speaker state.
      * (That means that for tones that get played *after* a call
      * disconnects, like "busy" or "congestion" or "call ended", you
      * should NOT call resetAudioStateAfterDisconnect() yourself.
-     * Instead, just start the InCallTonePlayer, which will automatically
+     * Instead, just play the tone, which will automatically
      * defer the resetAudioStateAfterDisconnect() call until the tone
      * finishes playing.)
      */
-    private class InCallTonePlayer extends Thread {
-        private int mToneId;
-        private int mState;
+    private class InCallTonePlayer extends Handler {
         // The possible tones we can play.
         public static final int TONE_NONE = 0;
         public static final int TONE_CALL_WAITING = 1;
@@ -699,27 +704,100 @@ public class CallNotifier extends Handler {
         // exact duration of the tone itself.
         static final int TONE_TIMEOUT_BUFFER = 20;
 
-        // The tone state
-        static final int TONE_OFF = 0;
-        static final int TONE_ON = 1;
-        static final int TONE_STOPPED = 2;
+        // Messages handled on the tone thread.
+        private static final int MSG_PLAY_TONE = 1;
+        private static final int MSG_TONE_DONE = 2;
+        private static final int MSG_PLAY_SIGNAL_INFO_TONE = 3;
+        private static final int MSG_CREATE_SIGNAL_INFO_TONE_GENERATOR = 4;
+
+        // ToneGenerators by stream and volume; only accessed on the tone thread.
+        private final Map<Integer, ToneGenerator> mToneGenerators =
+                new ArrayMap<Integer, ToneGenerator>();
 
-        InCallTonePlayer(int toneId) {
-            super();
-            mToneId = toneId;
-            mState = TONE_OFF;
+        // The tone which is currently playing, if any.
+        private ToneGenerator mCurrentToneGenerator;
+        private boolean mCurrentNeedToStopTone;
+
+        InCallTonePlayer(Looper looper) {
+            super(looper);
+        }
+
+        /**
+         * Queues a tone to be played; this stops the tone which is currently playing.
+         */
+        void play(int toneId) {
+            obtainMessage(MSG_PLAY_TONE, toneId, 0, SystemClock.uptimeMillis()).sendToTarget();
+        }
+
+        /**
+         * Queues a SignalInfo tone to be played on the SignalInfo ToneGenerator.
+         */
+        void playSignalInfoTone(int toneId) {
+            obtainMessage(MSG_PLAY_SIGNAL_INFO_TONE, toneId, 0).sendToTarget();
+        }
+
+        /**
+         * Queues the creation of the SignalInfo ToneGenerator, if it does not exist yet.
+         */
+        void createSignalInfoToneGenerator() {
+            sendEmptyMessage(MSG_CREATE_SIGNAL_INFO_TONE_GENERATOR);
         }
 
         @Override
-        public void run() {
-            log("InCallTonePlayer.run(toneId = " + mToneId + ")...");
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PLAY_TONE:
+                    handlePlayTone(msg.arg1, (Long) msg.obj);
+                    break;
+                case MSG_TONE_DONE:
+                    finishCurrentTone();
+                    // Finally, do the same cleanup we otherwise would have done
+                    // in onDisconnect().
+                    //
+                    // (But watch out: do NOT do this if the phone is in use,
+                    // since some of our tones get played *during* a call (like
+                    // CALL_WAITING) and we definitely *don't*
+                    // want to reset the audio mode / speaker / bluetooth after
+                    // playing those!
+                    // This call is really here for use with tones that get played
+                    // *after* a call disconnects, like "busy" or "congestion" or
+                    // "call ended", where the phone has already become idle but
+                    // we need to defer the resetAudioStateAfterDisconnect() call
+                    // till the tone finishes playing.)
+                    if (mCM.getState() == PhoneConstants.State.IDLE) {
+                        resetAudioStateAfterDisconnect();
+                    }
+                    break;
+                case MSG_PLAY_SIGNAL_INFO_TONE:
+                    CallNotifier.this.createSignalInfoToneGenerator();
+                    if (mSignalInfoToneGenerator != null) {
+                        //First stop any ongoing SignalInfo tone
+                        mSignalInfoToneGenerator.stopTone();
+
+                        //Start playing the new tone if its a valid tone
+                        mSignalInfoToneGenerator.startTone(msg.arg1);
+                    }
+                    break;
+                case MSG_CREATE_SIGNAL_INFO_TONE_GENERATOR:
+                    CallNotifier.this.createSignalInfoToneGenerator();
+                    break;
+            }
+        }
+
+        private void handlePlayTone(int toneId, long requestTimeMillis) {
+            log("InCallTonePlayer.handlePlayTone(toneId = " + toneId + ")...");
+
+            // A new tone replaces the one which is playing; its MSG_TONE_DONE (and thus the audio
+            // reset) is deferred to the end of the new tone.
+            removeMessages(MSG_TONE_DONE);
+            finishCurrentTone();
 
             int toneType = 0;  // passed to ToneGenerator.startTone()
             int toneVolume;  // passed to the ToneGenerator constructor
             int toneLengthMillis;
             int phoneType = mCM.getFgPhone().getPhoneType();
 
-            switch (mToneId) {
+            switch (toneId) {
                 case TONE_CALL_WAITING:
                     toneType = ToneGenerator.TONE_SUP_CALL_WAITING;
                     toneVolume = TONE_RELATIVE_VOLUME_HIPRI;
@@ -797,27 +875,17 @@ public class CallNotifier extends Handler {
                     toneLengthMillis = 4000;
                     break;
                 default:
-                    throw new IllegalArgumentException("Bad toneId: " + mToneId);
+                    throw new IllegalArgumentException("Bad toneId: " + toneId);
             }
 
-            // If the mToneGenerator creation fails, just continue without it.  It is
-            // a local audio signal, and is not as important.
-            ToneGenerator toneGenerator;
-            try {
-                int stream;
-                if (mBluetoothHeadset != null) {
-                    stream = mBluetoothHeadset.isAudioOn() ? AudioManager.STREAM_BLUETOOTH_SCO:
-                        AudioManager.STREAM_VOICE_CALL;
-                } else {
-                    stream = AudioManager.STREAM_VOICE_CALL;
-                }
-                toneGenerator = new ToneGenerator(stream, toneVolume);
-                // if (DBG) log("- created toneGenerator: " + toneGenerator);
-            } catch (RuntimeException e) {
-                Log.w(LOG_TAG,
-                      "InCallTonePlayer: Exception caught while creating ToneGenerator: " + e);
-                toneGenerator = null;
+            int stream;
+            if (mBluetoothHeadset != null) {
+                stream = mBluetoothHeadset.isAudioOn() ? AudioManager.STREAM_BLUETOOTH_SCO:
+                    AudioManager.STREAM_VOICE_CALL;
+            } else {
+                stream = AudioManager.STREAM_VOICE_CALL;
             }
+            ToneGenerator toneGenerator = getToneGenerator(stream, toneVolume);
 
             // Using the ToneGenerator (with the CALL_WAITING / BUSY /
             // CONGESTION tones at least), the ToneGenerator itself knows
@@ -871,51 +939,65 @@ public class CallNotifier extends Handler {
                     okToPlayTone = true;
                 }
 
-                synchronized (this) {
-                    if (okToPlayTone && mState != TONE_STOPPED) {
-                        mState = TONE_ON;
-                        toneGenerator.startTone(toneType);
-                        try {
-                            wait(toneLengthMillis + TONE_TIMEOUT_BUFFER);
-                        } catch  (InterruptedException e) {
-                            Log.w(LOG_TAG,
-                                  "InCallTonePlayer stopped: " + e);
-                        }
-                        if (needToStopTone) {
-                            toneGenerator.stopTone();
-                        }
-                    }
-                    // if (DBG) log("- InCallTonePlayer: done playing.");
-                    toneGenerator.release();
-                    mState = TONE_OFF;
+                if (okToPlayTone) {
+                    toneGenerator.startTone(toneType);
+                    mCurrentToneGenerator = toneGenerator;
+                    mCurrentNeedToStopTone = needToStopTone;
+                    if (DBG) log("- InCallTonePlayer: tone " + toneId + " started after "
+                            + (SystemClock.uptimeMillis() - requestTimeMillis) + "ms");
+                    sendEmptyMessageDelayed(MSG_TONE_DONE,
+                            toneLengthMillis + TONE_TIMEOUT_BUFFER);
+                    return;
                 }
             }
 
-            // Finally, do the same cleanup we otherwise would have done
-            // in onDisconnect().
-            //
-            // (But watch out: do NOT do this if the phone is in use,
-            // since some of our tones get played *during* a call (like
-            // CALL_WAITING) and we definitely *don't*
-            // want to reset the audio mode / speaker / bluetooth after
-            // playing those!
-            // This call is really here for use with tones that get played
-            // *after* a call disconnects, like "busy" or "congestion" or
-            // "call ended", where the phone has already become idle but
-            // we need to defer the resetAudioStateAfterDisconnect() call
-            // till the tone finishes playing.)
-            if (mCM.getState() == PhoneConstants.State.IDLE) {
-                resetAudioStateAfterDisconnect();
+            // Nothing to play; go straight to the post-tone cleanup.
+            sendEmptyMessage(MSG_TONE_DONE);
+        }
+
+        /**
+         * Stops the tone which is currently playing, if it needs to be stopped explicitly.
+         */
+        private void finishCurrentTone() {
+            if (mCurrentToneGenerator != null) {
+                if (mCurrentNeedToStopTone) {
+                    mCurrentToneGenerator.stopTone();
+                }
+                mCurrentToneGenerator = null;
             }
         }
 
-        public void stopTone() {
-            synchronized (this) {
-                if (mState == TONE_ON) {
-                    notify();
+        /**
+         * Returns the ToneGenerator for the stream and volume, creating it the first time.
+         * If the ToneGenerator creation fails, just continue without it.  It is
+         * a local audio signal, and is not as important.
+         */
+        private ToneGenerator getToneGenerator(int stream, int toneVolume) {
+            Integer key = (stream << 8) | toneVolume;
+            ToneGenerator toneGenerator = mToneGenerators.get(key);
+            if (toneGenerator == null) {
+                try {
+                    toneGenerator = new ToneGenerator(stream, toneVolume);
+                    mToneGenerators.put(key, toneGenerator);
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG,
+                          "InCallTonePlayer: Exception caught while creating ToneGenerator: " + e);
                 }
-                mState = TONE_STOPPED;
             }
+            return toneGenerator;
+        }
+
+        /**
+         * Creates the ToneGenerator used by most tones ahead of time, so that the first tone
+         * does not pay for it.
+         */
+        void prewarm() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    getToneGenerator(AudioManager.STREAM_VOICE_CALL, TONE_RELATIVE_VOLUME_HIPRI);
+                }
+            });
         }
     }
 
@@ -1005,55 +1087,33 @@ public class CallNotifier extends Handler {
     }
 
     public void updatePhoneStateListeners() {
-        List<SubscriptionInfo> subInfos = mSubscriptionManager.getActiveSubscriptionInfoList();
-
-        // Unregister phone listeners for inactive subscriptions.
-        Iterator<Integer> itr = mPhoneStateListeners.keySet().iterator();
-        while (itr.hasNext()) {
-            int subId = itr.next();
-            if (subInfos == null || !containsSubId(subInfos, subId)) {
-                // Hide the outstanding notifications.
-                mApplication.notificationMgr.updateMwi(subId, false);
-                mApplication.notificationMgr.updateCfi(subId, false);
-
-                // Listening to LISTEN_NONE removes the listener.
-                mTelephonyManager.listen(
-                        mPhoneStateListeners.get(subId), PhoneStateListener.LISTEN_NONE);
-                itr.remove();
-            }
-        }
-
-        if (subInfos == null) {
+        int[] subIds = SubscriptionDiff.getSortedSubIds(
+                mSubscriptionManager.getActiveSubscriptionInfoList());
+        SubscriptionDiff diff = SubscriptionDiff.compute(mListenedSubIds, subIds);
+        mListenedSubIds = subIds;
+        if (diff.isEmpty()) {
             return;
         }
 
-        // Register new phone listeners for active subscriptions.
-        for (int i = 0; i < subInfos.size(); i++) {
-            int subId = subInfos.get(i).getSubscriptionId();
-            if (!mPhoneStateListeners.containsKey(subId)) {
-                CallNotifierPhoneStateListener listener = new CallNotifierPhoneStateListener(subId);
-                mTelephonyManager.listen(listener,
-                        PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR
-                        | PhoneStateListener.LISTEN_CALL_FORWARDING_INDICATOR);
-                mPhoneStateListeners.put(subId, listener);
-            }
-        }
-    }
-
-    /**
-     * @return {@code true} if the list contains SubscriptionInfo with the given subscription id.
-     */
-    private boolean containsSubId(List<SubscriptionInfo> subInfos, int subId) {
-        if (subInfos == null) {
-            return false;
+        // Unregister phone listeners for inactive subscriptions.
+        for (int subId : diff.removed) {
+            // Hide the outstanding notifications.
+            mApplication.notificationMgr.updateMwi(subId, false);
+            mApplication.notificationMgr.updateCfi(subId, false);
+
+            // Listening to LISTEN_NONE removes the listener.
+            mTelephonyManager.listen(
+                    mPhoneStateListeners.remove(subId), PhoneStateListener.LISTEN_NONE);
         }
 
-        for (int i = 0; i < subInfos.size(); i++) {
-            if (subInfos.get(i).getSubscriptionId() == subId) {
-                return true;
-            }
+        // Register new phone listeners for active subscriptions.
+        for (int subId : diff.added) {
+            CallNotifierPhoneStateListener listener = new CallNotifierPhoneStateListener(subId);
+            mTelephonyManager.listen(listener,
+                    PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR
+                    | PhoneStateListener.LISTEN_CALL_FORWARDING_INDICATOR);
+            mPhoneStateListeners.put(subId, listener);
         }
-        return false;
     }
 
     /**
@@ -1092,35 +1152,6 @@ public class CallNotifier extends Handler {
         }
     }
 
-    /**
-     * Helper class to play SignalInfo tones using the ToneGenerator.
-     *
-     * To use, just instantiate a new SignalInfoTonePlayer
-     * (passing in the ToneID constant for the tone you want)
-     * and start() it.
-     */
-    private class SignalInfoTonePlayer extends Thread {
-        private int mToneId;
-
-        SignalInfoTonePlayer(int toneId) {
-            super();
-            mToneId = toneId;
-        }
-
-        @Override
-        public void run() {
-            log("SignalInfoTonePlayer.run(toneId = " + mToneId + ")...");
-            createSignalInfoToneGenerator();
-            if (mSignalInfoToneGenerator != null) {
-                //First stop any ongoing SignalInfo tone
-                mSignalInfoToneGenerator.stopTone();
-
-                //Start playing the new tone if its a valid tone
-                mSignalInfoToneGenerator.startTone(mToneId);
-            }
-        }
-    }
-
     /**
      * Plays a tone when the phone receives a SignalInfo record.
      */
@@ -1153,8 +1184,8 @@ public class CallNotifier extends Handler {
                     int toneID = SignalToneUtil.getAudioToneFromSignalInfo
                             (uSignalType, uAlertPitch, uSignal);
 
-                    //Create the SignalInfo tone player and pass the ToneID
-                    new SignalInfoTonePlayer(toneID).start();
+                    //Play the SignalInfo tone for the ToneID
+                    mInCallTonePlayer.playSignalInfoTone(toneID);
                 }
             }
         }
@@ -1168,7 +1199,7 @@ public class CallNotifier extends Handler {
      */
     /* package */ void stopSignalInfoTone() {
         if (DBG) log("stopSignalInfoTone: Stopping SignalInfo tone player");
-        new SignalInfoTonePlayer(ToneGenerator.TONE_CDMA_SIGNAL_OFF).start();
+        mInCallTonePlayer.playSignalInfoTone(ToneGenerator.TONE_CDMA_SIGNAL_OFF);
     }
 
     /**
@@ -1219,6 +1250,7 @@ public class CallNotifier extends Handler {
         public void onCallForwardingIndicatorChanged(boolean visible) {
             if (VDBG) log("onCallForwardingIndicatorChanged(): " + this.mSubId + " " + visible);
             mCFIStatus.put(this.mSubId, visible);
+            CallForwardInfoCache.invalidate(this.mSubId);
             mApplication.notificationMgr.updateCfi(this.mSubId, visible);
         }
     };
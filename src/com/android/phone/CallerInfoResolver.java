@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.telephony.CallerInfo;
+import com.android.internal.telephony.CallerInfoAsyncQuery;
+
+/**
+ * Resolves caller-id info for phone numbers on behalf of {@link PhoneUtils}.
+ *
+ * The most recent contact lookups are kept in a small LRU cache keyed by normalized number, so
+ * that repeat callers and call-end logging do not query the contacts provider again. The cache
+ * is dropped whenever the contacts change. Concurrent asynchronous lookups for the same number
+ * share a single {@link CallerInfoAsyncQuery}.
+ *
+ * Callers fill the {@link CallerInfo} they get with the presentation and CNAP details of their
+ * own connection, so the cache keeps a private copy of each result and every caller and query
+ * listener is handed a fresh copy. Emergency and voicemail results, whose type can't be copied,
+ * are never cached.
+ */
+class CallerInfoResolver {
+    private static final String LOG_TAG = CallerInfoResolver.class.getSimpleName();
+    private static final boolean DBG = (PhoneGlobals.DBG_LEVEL >= 2);
+
+    private static final int CACHE_SIZE = 32;
+    private static final int QUERY_TOKEN = -2;
+
+    private static CallerInfoResolver sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final LruCache<String, CallerInfo> mCache =
+            new LruCache<String, CallerInfo>(CACHE_SIZE);
+
+    /** Queries currently running, keyed by normalized number. Guarded by itself. */
+    private final ArrayMap<String, CallerInfoAsyncQuery> mPendingQueries =
+            new ArrayMap<String, CallerInfoAsyncQuery>();
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (DBG) log("contacts changed, dropping cached caller info");
+            mCache.evictAll();
+        }
+    };
+
+    /**
+     * Caches the results of our own queries. Runs before any listener added to the query.
+     */
+    private final CallerInfoAsyncQuery.OnQueryCompleteListener mQueryListener =
+            new CallerInfoAsyncQuery.OnQueryCompleteListener() {
+                @Override
+                public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
+                    String key = (String) cookie;
+                    synchronized (mPendingQueries) {
+                        mPendingQueries.remove(key);
+                    }
+                    if (isCacheable(ci)) {
+                        mCache.put(key, copy(ci));
+                    }
+                }
+            };
+
+    /**
+     * Initializes the singleton instance. Must be called on a thread with a looper.
+     */
+    static CallerInfoResolver init(Context context) {
+        synchronized (CallerInfoResolver.class) {
+            if (sInstance == null) {
+                sInstance = new CallerInfoResolver(context);
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    static CallerInfoResolver getInstance() {
+        return sInstance;
+    }
+
+    private CallerInfoResolver(Context context) {
+        mContext = context;
+        mContext.getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true, mContactsObserver);
+    }
+
+    /**
+     * Returns a copy of the cached caller info for the number without blocking, or null if the
+     * number has not been looked up recently.
+     */
+    CallerInfo getCached(String number) {
+        String key = getKey(number);
+        CallerInfo ci = key == null ? null : mCache.get(key);
+        return ci == null ? null : copy(ci);
+    }
+
+    /**
+     * Returns the caller info for the number, querying the contacts provider on the calling
+     * thread if it is not cached. Prefer {@link #startQuery} on latency sensitive threads.
+     */
+    CallerInfo resolve(Context context, String number) {
+        String key = getKey(number);
+        if (key == null) {
+            return null;
+        }
+        CallerInfo ci = mCache.get(key);
+        if (ci != null) {
+            return copy(ci);
+        }
+        ci = CallerInfo.getCallerInfo(context, number);
+        if (isCacheable(ci)) {
+            mCache.put(key, copy(ci));
+        }
+        return ci;
+    }
+
+    /**
+     * Starts an asynchronous lookup of the number, or joins the lookup already running for it.
+     * The listener gets its own copy of the result.
+     *
+     * @return The query the listener was added to, or null if the number was cached. In that
+     *         case the listener is called with a copy of the cached caller info from the main
+     *         thread's queue.
+     */
+    CallerInfoAsyncQuery startQuery(final int token, Context context, String number,
+            final CallerInfoAsyncQuery.OnQueryCompleteListener listener, final Object cookie) {
+        String key = getKey(number);
+        CallerInfo cached = key == null ? null : mCache.get(key);
+        if (cached != null) {
+            if (DBG) {
+                log("answering query from cache for " + PhoneUtils.toLogSafePhoneNumber(number));
+            }
+            final CallerInfo ci = copy(cached);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onQueryComplete(token, cookie, ci);
+                }
+            });
+            return null;
+        }
+
+        CallerInfoAsyncQuery query;
+        synchronized (mPendingQueries) {
+            query = mPendingQueries.get(key);
+            if (query == null) {
+                query = CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context, number,
+                        mQueryListener, key);
+                mPendingQueries.put(key, query);
+            } else if (DBG) {
+                log("joining running query for " + PhoneUtils.toLogSafePhoneNumber(number));
+            }
+        }
+        query.addQueryListener(token, new CallerInfoAsyncQuery.OnQueryCompleteListener() {
+            @Override
+            public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
+                listener.onQueryComplete(token, cookie, isCacheable(ci) ? copy(ci) : ci);
+            }
+        }, cookie);
+        return query;
+    }
+
+    private static boolean isCacheable(CallerInfo ci) {
+        return ci != null && !ci.isEmergencyNumber() && !ci.isVoiceMailNumber();
+    }
+
+    /**
+     * Copies the caller info. Must not be used for emergency or voicemail results, whose type
+     * can only be set from within the framework.
+     */
+    private static CallerInfo copy(CallerInfo ci) {
+        CallerInfo copy = new CallerInfo();
+        copy.name = ci.name;
+        copy.phoneNumber = ci.phoneNumber;
+        copy.normalizedNumber = ci.normalizedNumber;
+        copy.geoDescription = ci.geoDescription;
+        copy.cnapName = ci.cnapName;
+        copy.numberPresentation = ci.numberPresentation;
+        copy.namePresentation = ci.namePresentation;
+        copy.contactExists = ci.contactExists;
+        copy.phoneLabel = ci.phoneLabel;
+        copy.numberType = ci.numberType;
+        copy.numberLabel = ci.numberLabel;
+        copy.photoResource = ci.photoResource;
+        copy.contactIdOrZero = ci.contactIdOrZero;
+        copy.lookupKey = ci.lookupKey;
+        copy.userType = ci.userType;
+        copy.needUpdate = ci.needUpdate;
+        copy.contactRefUri = ci.contactRefUri;
+        copy.contactDisplayPhotoUri = ci.contactDisplayPhotoUri;
+        copy.contactRingtoneUri = ci.contactRingtoneUri;
+        copy.shouldSendToVoicemail = ci.shouldSendToVoicemail;
+        copy.cachedPhoto = ci.cachedPhoto;
+        copy.cachedPhotoIcon = ci.cachedPhotoIcon;
+        copy.isCachedPhotoCurrent = ci.isCachedPhotoCurrent;
+        return copy;
+    }
+
+    private static String getKey(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        return PhoneNumberUtils.isUriNumber(number) ? number
+                : PhoneNumberUtils.normalizeNumber(number);
+    }
+
+    private static void log(String msg) {
+        Log.d(LOG_TAG, msg);
+    }
+}
@@ -8,6 +8,7 @@ import android.app.ActionBar;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.SystemProperties;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
 import android.util.Log;
@@ -33,6 +34,11 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
     private static final String KEY_STATUS = "status";
     private static final String KEY_NUMBER = "number";
 
+    // Set to false to read the options one after the other, for networks which can't take
+    // several supplementary service queries at once. Cached options aren't used in that mode,
+    // since reading them again in the background would overlap with the next read.
+    private static final String PROPERTY_PARALLEL_QUERY = "persist.radio.cf_parallel_query";
+
     private CallForwardEditPreference mButtonCFU;
     private CallForwardEditPreference mButtonCFB;
     private CallForwardEditPreference mButtonCFNRy;
@@ -95,7 +101,16 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
         if (mFirstResume) {
             if (mIcicle == null) {
                 if (DBG) Log.d(LOG_TAG, "start to init ");
-                mPreferences.get(mInitIndex).init(this, false, mPhone);
+                if (SystemProperties.getBoolean(PROPERTY_PARALLEL_QUERY, true)) {
+                    // Read all the options at once; onFinished has nothing left to start. Options
+                    // read recently are shown right away and read again in the background.
+                    mInitIndex = mPreferences.size() - 1;
+                    for (CallForwardEditPreference pref : mPreferences) {
+                        pref.init(this, false, mPhone, true /* useCache */);
+                    }
+                } else {
+                    mPreferences.get(mInitIndex).init(this, false, mPhone);
+                }
             } else {
                 mInitIndex = mPreferences.size();
 
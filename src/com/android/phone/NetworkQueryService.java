@@ -27,10 +27,14 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.telephony.SubscriptionManager;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import java.util.ArrayList;
 
@@ -45,18 +49,47 @@ public class NetworkQueryService extends Service {
 
     // static events
     private static final int EVENT_NETWORK_SCAN_COMPLETED = 100;
-
-    // static states indicating the query status of the service
-    private static final int QUERY_READY = -1;
-    private static final int QUERY_IS_RUNNING = -2;
+    private static final int EVENT_NETWORK_SCAN_TIMEOUT = 101;
 
     // error statuses that will be retured in the callback.
     public static final int QUERY_OK = 0;
     public static final int QUERY_EXCEPTION = 1;
-    
-    /** state of the query service */
-    private int mState;
-    
+
+    /** How long the results of a successful scan are handed out without scanning again. */
+    private static final long CACHED_RESULT_TTL_MILLIS = 30 * 1000;
+
+    /** How long to wait for the RIL to answer a scan before failing it. */
+    private static final String PROPERTY_QUERY_TIMEOUT = "persist.radio.net_scan_timeout";
+    private static final int DEFAULT_QUERY_TIMEOUT_MILLIS = 3 * 60 * 1000;
+
+    /**
+     * The results of the last successful scan on a phone.
+     */
+    private static final class CachedResult {
+        final long mTimeMillis;
+        final ArrayList<OperatorInfo> mNetworks;
+
+        CachedResult(long timeMillis, ArrayList<OperatorInfo> networks) {
+            mTimeMillis = timeMillis;
+            mNetworks = networks;
+        }
+
+        boolean isFresh(long nowMillis) {
+            return nowMillis - mTimeMillis < CACHED_RESULT_TTL_MILLIS;
+        }
+    }
+
+    /**
+     * The sequence number of the scan running on each phone, keyed by phone id. A phone with no
+     * entry is ready for a new scan. Results and timeouts carry the sequence number of their
+     * scan so that a late answer to a timed out scan is dropped.
+     */
+    private final SparseIntArray mRunningQueries = new SparseIntArray();
+    private int mNextQuerySequence;
+
+    /** The last successful scan results, keyed by phone id. */
+    private final SparseArray<CachedResult> mCachedResults = new SparseArray<CachedResult>();
+
     /**
      * Class for clients to access.  Because we know this service always
      * runs in the same process as its clients, we don't need to deal with
@@ -71,7 +104,7 @@ public class NetworkQueryService extends Service {
 
     /**
      * Local handler to receive the network query compete callback
-     * from the RIL.
+     * from the RIL. arg1 holds the phone id and arg2 the query sequence.
      */
     Handler mHandler = new Handler() {
         @Override
@@ -80,13 +113,18 @@ public class NetworkQueryService extends Service {
                 // if the scan is complete, broadcast the results.
                 // to all registerd callbacks.
                 case EVENT_NETWORK_SCAN_COMPLETED:
-                    if (DBG) log("scan completed, broadcasting results");
-                    broadcastQueryResults((AsyncResult) msg.obj);
+                    if (DBG) log("scan completed on phone " + msg.arg1);
+                    broadcastQueryResults(msg.arg1, msg.arg2, (AsyncResult) msg.obj);
+                    break;
+
+                case EVENT_NETWORK_SCAN_TIMEOUT:
+                    log("scan timed out on phone " + msg.arg1);
+                    broadcastQueryResults(msg.arg1, msg.arg2, null);
                     break;
             }
         }
     };
-    
+
     /** 
      * List of callback objects, also used to synchronize access to 
      * itself and to changes in state.
@@ -100,46 +138,55 @@ public class NetworkQueryService extends Service {
     private final INetworkQueryService.Stub mBinder = new INetworkQueryService.Stub() {
         
         /**
-         * Starts a query with a INetworkQueryServiceCallback object if
-         * one has not been started yet.  Ignore the new query request
-         * if the query has been started already.  Either way, place the
-         * callback object in the queue to be notified upon request 
-         * completion.
+         * Starts a query on the given phone with a INetworkQueryServiceCallback
+         * object if one has not been started yet.  If the phone was scanned
+         * recently, the cached results are handed to the callback right away
+         * instead.  Otherwise, place the callback object in the queue to be
+         * notified once the query for that phone completes.
          */
         public void startNetworkQuery(INetworkQueryServiceCallback cb, int phoneId) {
             if (cb != null) {
                 // register the callback to the list of callbacks.
                 synchronized (mCallbacks) {
-                    mCallbacks.register(cb);
+                    CachedResult cached = mCachedResults.get(phoneId);
+                    if (cached != null && cached.isFresh(SystemClock.elapsedRealtime())) {
+                        if (DBG) log("using cached results for phone " + phoneId);
+                        try {
+                            cb.onQueryComplete(cached.mNetworks, QUERY_OK);
+                        } catch (RemoteException e) {
+                        }
+                        return;
+                    }
+
+                    mCallbacks.register(cb, phoneId);
                     if (DBG) log("registering callback " + cb.getClass().toString());
-                    
-                    switch (mState) {
-                        case QUERY_READY:
-                            // TODO: we may want to install a timeout here in case we
-                            // do not get a timely response from the RIL.
-                            Phone phone = PhoneFactory.getPhone(phoneId);
-                            if (phone != null) {
-                                phone.getAvailableNetworks(
-                                        mHandler.obtainMessage(EVENT_NETWORK_SCAN_COMPLETED));
-                                mState = QUERY_IS_RUNNING;
-                                if (DBG) log("starting new query");
-                            } else {
-                                if (DBG) {
-                                    log("phone is null");
-                                }
-                            }
-                            break;
-                            
-                        // do nothing if we're currently busy.
-                        case QUERY_IS_RUNNING:
-                            if (DBG) log("query already in progress");
-                            break;
-                        default:
+
+                    // do nothing if we're currently busy with this phone.
+                    if (mRunningQueries.indexOfKey(phoneId) >= 0) {
+                        if (DBG) log("query already in progress on phone " + phoneId);
+                        return;
+                    }
+
+                    Phone phone = PhoneFactory.getPhone(phoneId);
+                    if (phone != null) {
+                        int sequence = mNextQuerySequence++;
+                        mRunningQueries.put(phoneId, sequence);
+                        phone.getAvailableNetworks(mHandler.obtainMessage(
+                                EVENT_NETWORK_SCAN_COMPLETED, phoneId, sequence));
+                        mHandler.sendMessageDelayed(mHandler.obtainMessage(
+                                EVENT_NETWORK_SCAN_TIMEOUT, phoneId, sequence),
+                                SystemProperties.getInt(PROPERTY_QUERY_TIMEOUT,
+                                        DEFAULT_QUERY_TIMEOUT_MILLIS));
+                        if (DBG) log("starting new query on phone " + phoneId);
+                    } else {
+                        if (DBG) {
+                            log("phone is null");
+                        }
                     }
                 }
             }
         }
-        
+
         /**
          * Stops a query with a INetworkQueryServiceCallback object as
          * a token.
@@ -167,11 +214,6 @@ public class NetworkQueryService extends Service {
         }
     };
 
-    @Override
-    public void onCreate() {
-        mState = QUERY_READY;        
-    }
-
     /**
      * Required for service implementation.
      */
@@ -192,40 +234,52 @@ public class NetworkQueryService extends Service {
     }
 
     /**
-     * Broadcast the results from the query to all registered callback
-     * objects. 
+     * Broadcast the results from the query on the given phone to all
+     * callback objects registered for that phone. A null AsyncResult
+     * means that the query timed out.
      */
-    private void broadcastQueryResults (AsyncResult ar) {
-        // reset the state.
+    private void broadcastQueryResults(int phoneId, int sequence, AsyncResult ar) {
         synchronized (mCallbacks) {
-            mState = QUERY_READY;
-            
-            // see if we need to do any work.
-            if (ar == null) {
-                if (DBG) log("AsyncResult is null.");
+            // drop the answer to a query which has already completed or timed out.
+            int index = mRunningQueries.indexOfKey(phoneId);
+            if (index < 0 || mRunningQueries.valueAt(index) != sequence) {
+                if (DBG) log("ignoring stale query result on phone " + phoneId);
                 return;
             }
-    
+
+            // reset the state.
+            mRunningQueries.removeAt(index);
+
             // TODO: we may need greater accuracy here, but for now, just a
             // simple status integer will suffice.
-            int exception = (ar.exception == null) ? QUERY_OK : QUERY_EXCEPTION;
+            int exception = (ar == null || ar.exception != null) ? QUERY_EXCEPTION : QUERY_OK;
             if (DBG) log("AsyncResult has exception " + exception);
-            
-            // Make the calls to all the registered callbacks.
+
+            ArrayList<OperatorInfo> networks = null;
+            if (exception == QUERY_OK) {
+                networks = (ArrayList<OperatorInfo>) ar.result;
+                mCachedResults.put(phoneId, new CachedResult(SystemClock.elapsedRealtime(),
+                        networks));
+            }
+
+            // Make the calls to the callbacks registered for this phone.
             for (int i = (mCallbacks.beginBroadcast() - 1); i >= 0; i--) {
-                INetworkQueryServiceCallback cb = mCallbacks.getBroadcastItem(i); 
+                if (!Integer.valueOf(phoneId).equals(mCallbacks.getBroadcastCookie(i))) {
+                    continue;
+                }
+                INetworkQueryServiceCallback cb = mCallbacks.getBroadcastItem(i);
                 if (DBG) log("broadcasting results to " + cb.getClass().toString());
                 try {
-                    cb.onQueryComplete((ArrayList<OperatorInfo>) ar.result, exception);
+                    cb.onQueryComplete(networks, exception);
                 } catch (RemoteException e) {
                 }
             }
-            
+
             // finish up.
             mCallbacks.finishBroadcast();
         }
     }
-    
+
     private static void log(String msg) {
         Log.d(LOG_TAG, msg);
     }    
@@ -42,6 +42,7 @@ import android.telephony.PhoneNumberUtils;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
@@ -110,6 +111,18 @@ public class NotificationMgr {
     // used to track whether the message waiting indicator is visible, per subscription id.
     private ArrayMap<Integer, Boolean> mMwiVisible = new ArrayMap<Integer, Boolean>();
 
+    // Marks a notification which has been cancelled in mPostedMwi / mPostedCfi.
+    private static final String NOTIFICATION_CANCELLED = "";
+
+    // The content of the MWI and CFI notifications last posted, per subscription id, so that
+    // repeated indications which would render the same notification are dropped.
+    private final ArrayMap<Integer, String> mPostedMwi = new ArrayMap<Integer, String>();
+    private final ArrayMap<Integer, String> mPostedCfi = new ArrayMap<Integer, String>();
+
+    // Active subscription info per subscription id; cleared when subscriptions change.
+    private final ArrayMap<Integer, SubscriptionInfo> mSubscriptionInfoCache =
+            new ArrayMap<Integer, SubscriptionInfo>();
+
     /**
      * Private constructor (this is a singleton).
      * @see #init(PhoneGlobals)
@@ -127,6 +140,15 @@ public class NotificationMgr {
         mSubscriptionManager = SubscriptionManager.from(mContext);
         mTelecomManager = TelecomManager.from(mContext);
         mTelephonyManager = (TelephonyManager) app.getSystemService(Context.TELEPHONY_SERVICE);
+        mSubscriptionManager.addOnSubscriptionsChangedListener(
+                new OnSubscriptionsChangedListener() {
+                    @Override
+                    public void onSubscriptionsChanged() {
+                        synchronized (mSubscriptionInfoCache) {
+                            mSubscriptionInfoCache.clear();
+                        }
+                    }
+                });
     }
 
     /**
@@ -273,6 +295,8 @@ public class NotificationMgr {
         if (mMwiVisible.containsKey(subId)) {
             boolean mwiVisible = mMwiVisible.get(subId);
             if (mwiVisible) {
+                // The voicemail settings may have changed, so post even if the content is the same.
+                clearPostedNotification(mPostedMwi, subId);
                 updateMwi(subId, mwiVisible, false /* enableNotificationSound */);
             }
         }
@@ -308,7 +332,7 @@ public class NotificationMgr {
         int notificationId = getNotificationId(VOICEMAIL_NOTIFICATION, phoneId);
 
         if (visible && phone != null) {
-            VoicemailStatusQueryHelper queryHelper = new VoicemailStatusQueryHelper(mContext);
+            VoicemailStatusQueryHelper queryHelper = VoicemailStatusQueryHelper.getInstance(mContext);
             PhoneAccountHandle phoneAccount = PhoneUtils.makePstnPhoneAccountHandle(phone);
             if (queryHelper.isNotificationsChannelActive(phoneAccount)) {
                 Log.v(LOG_TAG, "Notifications channel active for visual voicemail, hiding mwi.");
@@ -325,7 +349,7 @@ public class NotificationMgr {
                 return;
             }
 
-            SubscriptionInfo subInfo = mSubscriptionManager.getActiveSubscriptionInfo(subId);
+            SubscriptionInfo subInfo = getActiveSubscriptionInfo(subId);
             if (subInfo == null) {
                 Log.w(LOG_TAG, "Found null subscription info for: " + subId);
                 return;
@@ -397,6 +421,16 @@ public class NotificationMgr {
                 intent.putExtra(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE, phoneAccountHandle);
             }
 
+            PersistableBundle carrierConfig = PhoneGlobals.getInstance().getCarrierConfigForSubId(
+                    mPhone.getSubId());
+            boolean ongoing = carrierConfig.getBoolean(
+                    CarrierConfigManager.KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL);
+            if (!shouldPostNotification(mPostedMwi, subId, resId + "|" + notificationTitle + "|"
+                    + notificationText + "|" + vmNumber + "|" + ongoing)) {
+                if (DBG) log("- MWI notification unchanged, not posting again");
+                return;
+            }
+
             PendingIntent pendingIntent =
                     PendingIntent.getActivity(mContext, subId /* requestCode */, intent, 0);
             Uri ringtoneUri = null;
@@ -406,8 +440,6 @@ public class NotificationMgr {
             }
 
             Resources res = mContext.getResources();
-            PersistableBundle carrierConfig = PhoneGlobals.getInstance().getCarrierConfigForSubId(
-                    mPhone.getSubId());
             Notification.Builder builder = new Notification.Builder(mContext);
             builder.setSmallIcon(resId)
                     .setWhen(System.currentTimeMillis())
@@ -417,8 +449,7 @@ public class NotificationMgr {
                     .setContentIntent(pendingIntent)
                     .setSound(ringtoneUri)
                     .setColor(res.getColor(R.color.dialer_theme_color))
-                    .setOngoing(carrierConfig.getBoolean(
-                            CarrierConfigManager.KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL));
+                    .setOngoing(ongoing);
 
             if (VoicemailNotificationSettingsUtil.isVibrationEnabled(phone)) {
                 builder.setDefaults(Notification.DEFAULT_VIBRATE);
@@ -439,7 +470,7 @@ public class NotificationMgr {
                             userHandle);
                 }
             }
-        } else {
+        } else if (shouldPostNotification(mPostedMwi, subId, NOTIFICATION_CANCELLED)) {
             mNotificationManager.cancelAsUser(
                     Integer.toString(subId) /* tag */,
                     notificationId,
@@ -471,7 +502,7 @@ public class NotificationMgr {
             // effort though, since there are multiple layers of messages that
             // will need to propagate that information.
 
-            SubscriptionInfo subInfo = mSubscriptionManager.getActiveSubscriptionInfo(subId);
+            SubscriptionInfo subInfo = getActiveSubscriptionInfo(subId);
             if (subInfo == null) {
                 Log.w(LOG_TAG, "Found null subscription info for: " + subId);
                 return;
@@ -486,6 +517,12 @@ public class NotificationMgr {
                 notificationTitle = mContext.getString(R.string.labelCF);
             }
 
+            if (!shouldPostNotification(mPostedCfi, subId, resId + "|" + notificationTitle + "|"
+                    + subInfo.getIconTint())) {
+                if (DBG) log("- CFI notification unchanged, not posting again");
+                return;
+            }
+
             Notification.Builder builder = new Notification.Builder(mContext)
                     .setSmallIcon(resId)
                     .setColor(subInfo.getIconTint())
@@ -497,8 +534,7 @@ public class NotificationMgr {
             Intent intent = new Intent(Intent.ACTION_MAIN);
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
             intent.setClassName("com.android.phone", "com.android.phone.CallFeaturesSetting");
-            SubscriptionInfoHelper.addExtrasToIntent(
-                    intent, mSubscriptionManager.getActiveSubscriptionInfo(subId));
+            SubscriptionInfoHelper.addExtrasToIntent(intent, subInfo);
             PendingIntent contentIntent =
                     PendingIntent.getActivity(mContext, subId /* requestCode */, intent, 0);
 
@@ -516,7 +552,7 @@ public class NotificationMgr {
                         builder.build(),
                         userHandle);
             }
-        } else {
+        } else if (shouldPostNotification(mPostedCfi, subId, NOTIFICATION_CANCELLED)) {
             mNotificationManager.cancelAsUser(
                     Integer.toString(subId) /* tag */,
                     notificationId,
@@ -524,6 +560,47 @@ public class NotificationMgr {
         }
     }
 
+    /**
+     * Returns the active subscription info for a subscription id, caching it until subscriptions
+     * change.
+     */
+    private SubscriptionInfo getActiveSubscriptionInfo(int subId) {
+        synchronized (mSubscriptionInfoCache) {
+            SubscriptionInfo subInfo = mSubscriptionInfoCache.get(subId);
+            if (subInfo == null) {
+                subInfo = mSubscriptionManager.getActiveSubscriptionInfo(subId);
+                if (subInfo != null) {
+                    mSubscriptionInfoCache.put(subId, subInfo);
+                }
+            }
+            return subInfo;
+        }
+    }
+
+    /**
+     * Records the content of the notification about to be posted (or
+     * {@link #NOTIFICATION_CANCELLED}) for a subscription.
+     *
+     * @return {@code false} if the same content was already posted, in which case there is no
+     *         need to post it again.
+     */
+    private static boolean shouldPostNotification(
+            ArrayMap<Integer, String> posted, int subId, String content) {
+        synchronized (posted) {
+            if (content.equals(posted.get(subId))) {
+                return false;
+            }
+            posted.put(subId, content);
+            return true;
+        }
+    }
+
+    private static void clearPostedNotification(ArrayMap<Integer, String> posted, int subId) {
+        synchronized (posted) {
+            posted.remove(subId);
+        }
+    }
+
     /**
      * Shows the "data disconnected due to roaming" notification, which
      * appears when you lose data connectivity because you're roaming and
@@ -402,6 +402,9 @@ public class PhoneGlobals extends ContextWrapper {
             // The asynchronous caching will start just after this call.
             callerInfoCache = CallerInfoCache.init(this);
 
+            // Create the CallerInfoResolver singleton, which remembers recent caller-id lookups.
+            CallerInfoResolver.init(this);
+
             // Monitors call activity from the telephony layer
             callStateMonitor = new CallStateMonitor(mCM);
 
@@ -40,7 +40,9 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.ContextThemeWrapper;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -1254,6 +1256,9 @@ public class PhoneUtils {
      * Finally, if the getCallerInfo() call did succeed, we save the resulting
      * CallerInfo object in the "userData" field of the Connection.
      *
+     * Lookups by phone number go through {@link CallerInfoResolver}, so a
+     * number which was looked up recently does not hit the contacts provider.
+     *
      * NOTE: This API should be avoided, with preference given to the
      * asynchronous startGetCallerInfo API.
      */
@@ -1286,7 +1291,7 @@ public class PhoneUtils {
                     if (DBG) log("getCallerInfo: number = " + toLogSafePhoneNumber(number));
 
                     if (!TextUtils.isEmpty(number)) {
-                        info = CallerInfo.getCallerInfo(context, number);
+                        info = CallerInfoResolver.getInstance().resolve(context, number);
                         if (info != null) {
                             c.setUserData(info);
                         }
@@ -1467,9 +1472,7 @@ public class PhoneUtils {
                     cit.isFinal = true;
                 } else {
                     if (DBG) log("==> Actually starting CallerInfoAsyncQuery.startQuery()...");
-                    cit.asyncQuery = CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context,
-                            number, sCallerInfoQueryListener, c);
-                    cit.asyncQuery.addQueryListener(QUERY_TOKEN, listener, cookie);
+                    cit.asyncQuery = startCallerInfoQuery(context, number, c, listener, cookie);
                     cit.isFinal = false;
                 }
             } else {
@@ -1543,9 +1546,8 @@ public class PhoneUtils {
                     if (cit.currentInfo.numberPresentation != PhoneConstants.PRESENTATION_ALLOWED) {
                         cit.isFinal = true;
                     } else {
-                        cit.asyncQuery = CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context,
-                                updatedNumber, sCallerInfoQueryListener, c);
-                        cit.asyncQuery.addQueryListener(QUERY_TOKEN, listener, cookie);
+                        cit.asyncQuery = startCallerInfoQuery(context, updatedNumber, c,
+                                listener, cookie);
                         cit.isFinal = false;
                     }
                 } else {
@@ -1588,6 +1590,25 @@ public class PhoneUtils {
         return cit;
     }
 
+    /**
+     * Looks up the number through {@link CallerInfoResolver} for the connection, and for the
+     * caller's listener if there is one. Each listener gets its own copy of the result.
+     *
+     * @return The running query, or null if the result was cached and has been posted to the
+     *         listeners.
+     */
+    private static CallerInfoAsyncQuery startCallerInfoQuery(Context context, String number,
+            Connection c, CallerInfoAsyncQuery.OnQueryCompleteListener listener, Object cookie) {
+        CallerInfoResolver resolver = CallerInfoResolver.getInstance();
+        CallerInfoAsyncQuery query = resolver.startQuery(QUERY_TOKEN, context, number,
+                sCallerInfoQueryListener, c);
+        if (listener != null) {
+            // Joins the query above, or is answered from the cache right after it.
+            resolver.startQuery(QUERY_TOKEN, context, number, listener, cookie);
+        }
+        return query;
+    }
+
     /**
      * Static CallerInfoAsyncQuery.OnQueryCompleteListener instance that
      * we use with all our CallerInfoAsyncQuery.startQuery() requests.
@@ -2453,6 +2474,20 @@ public class PhoneUtils {
                 == Configuration.ORIENTATION_LANDSCAPE;
     }
 
+    /**
+     * Interned PSTN phone account handles. A handle is a pure function of its id, so entries
+     * never go stale when subscriptions change; they are only added. These maps are all guarded
+     * by sPstnHandlesBySubId.
+     */
+    private static final SparseArray<PhoneAccountHandle> sPstnHandlesBySubId =
+            new SparseArray<PhoneAccountHandle>();
+    private static final ArrayMap<String, PhoneAccountHandle> sPstnHandlesById =
+            new ArrayMap<String, PhoneAccountHandle>();
+    /** The subscription id of every PSTN handle seen so far. */
+    private static final ArrayMap<PhoneAccountHandle, Integer> sSubIdsByPstnHandle =
+            new ArrayMap<PhoneAccountHandle, Integer>();
+    private static ComponentName sPstnConnectionServiceName;
+
     public static PhoneAccountHandle makePstnPhoneAccountHandle(String id) {
         return makePstnPhoneAccountHandleWithPrefix(id, "", false);
     }
@@ -2467,6 +2502,19 @@ public class PhoneUtils {
 
     public static PhoneAccountHandle makePstnPhoneAccountHandleWithPrefix(
             Phone phone, String prefix, boolean isEmergency) {
+        if (!isEmergency && prefix.isEmpty()) {
+            // The common case: look the handle up by subscription id without building its id.
+            int subId = phone.getSubId();
+            synchronized (sPstnHandlesBySubId) {
+                PhoneAccountHandle handle = sPstnHandlesBySubId.get(subId);
+                if (handle == null) {
+                    handle = internPstnPhoneAccountHandle(String.valueOf(subId));
+                    sPstnHandlesBySubId.put(subId, handle);
+                    sSubIdsByPstnHandle.put(handle, subId);
+                }
+                return handle;
+            }
+        }
         // TODO: Should use some sort of special hidden flag to decorate this account as
         // an emergency-only account
         String id = isEmergency ? "E" : prefix + String.valueOf(phone.getSubId());
@@ -2475,8 +2523,22 @@ public class PhoneUtils {
 
     public static PhoneAccountHandle makePstnPhoneAccountHandleWithPrefix(
             String id, String prefix, boolean isEmergency) {
-        ComponentName pstnConnectionServiceName = getPstnConnectionServiceName();
-        return new PhoneAccountHandle(pstnConnectionServiceName, id);
+        synchronized (sPstnHandlesBySubId) {
+            return internPstnPhoneAccountHandle(id);
+        }
+    }
+
+    /**
+     * Returns the interned PSTN handle with the given id, creating it if needed. Must be called
+     * with sPstnHandlesBySubId held.
+     */
+    private static PhoneAccountHandle internPstnPhoneAccountHandle(String id) {
+        PhoneAccountHandle handle = sPstnHandlesById.get(id);
+        if (handle == null) {
+            handle = new PhoneAccountHandle(getPstnConnectionServiceName(), id);
+            sPstnHandlesById.put(id, handle);
+        }
+        return handle;
     }
 
     public static int getSubIdForPhoneAccount(PhoneAccount phoneAccount) {
@@ -2488,12 +2550,28 @@ public class PhoneUtils {
     }
 
     public static int getSubIdForPhoneAccountHandle(PhoneAccountHandle handle) {
-        if (handle != null && handle.getComponentName().equals(getPstnConnectionServiceName())) {
-            try {
-                return Integer.parseInt(handle.getId());
-            } catch (NumberFormatException ex) {}
+        if (handle == null) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
         }
-        return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        synchronized (sPstnHandlesBySubId) {
+            Integer cachedSubId = sSubIdsByPstnHandle.get(handle);
+            if (cachedSubId != null) {
+                return cachedSubId;
+            }
+        }
+
+        // Only remember our own handles, so that the map stays bounded by our accounts.
+        if (!handle.getComponentName().equals(getPstnConnectionServiceName())) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+        int subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        try {
+            subId = Integer.parseInt(handle.getId());
+        } catch (NumberFormatException ex) {}
+        synchronized (sPstnHandlesBySubId) {
+            sSubIdsByPstnHandle.put(handle, subId);
+        }
+        return subId;
     }
 
     /**
@@ -2510,7 +2588,11 @@ public class PhoneUtils {
     }
 
     private static ComponentName getPstnConnectionServiceName() {
-        return new ComponentName(PhoneGlobals.getInstance(), TelephonyConnectionService.class);
+        if (sPstnConnectionServiceName == null) {
+            sPstnConnectionServiceName = new ComponentName(PhoneGlobals.getInstance(),
+                    TelephonyConnectionService.class);
+        }
+        return sPstnConnectionServiceName;
     }
 
     private static Phone getPhoneFromIccId(String iccId) {
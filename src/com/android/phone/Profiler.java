@@ -17,106 +17,202 @@
 package com.android.phone;
 
 import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
-import android.view.View;
-import android.view.ViewParent;
-import android.view.Window;
+import android.util.SparseLongArray;
+
+import java.io.PrintWriter;
 
 /**
- * Profiling utilities for the Phone app.
+ * Call setup latency tracing for the Phone app.
+ *
+ * Each traced phase is a span measured on the {@link SystemClock#elapsedRealtime()} clock.
+ * Completed spans are kept in a preallocated ring buffer and folded into a per-phase histogram,
+ * so tracing costs little more than a log line. The results are printed by
+ * {@link #dump(PrintWriter)} as part of the telephony dumpsys output, and every span is also
+ * emitted as an async systrace section when app tracing is enabled.
  */
-public class Profiler {
+public final class Profiler {
     private static final String LOG_TAG = PhoneGlobals.LOG_TAG;
 
-    // Let the compiler optimize all this code out unless we're actively
-    // doing profiling runs.
-    // TODO: Instead of doing all these "if (PROFILE)" checks here, every
-    // place that *calls* any of these methods should check the value of
-    // Profiler.PROFILE first, so the method calls will get optimized out
-    // too.
-    private static final boolean PROFILE = false;
-
-    static long sTimeCallScreenRequested;
-    static long sTimeCallScreenOnCreate;
-    static long sTimeCallScreenCreated;
-
-    // TODO: Clean up any usage of these times.  (There's no "incoming call
-    // panel" in the Phone UI any more; incoming calls just go straight to the
-    // regular in-call UI.)
-    static long sTimeIncomingCallPanelRequested;
-    static long sTimeIncomingCallPanelOnCreate;
-    static long sTimeIncomingCallPanelCreated;
+    /** From {@code sendIncomingCallIntent} until telecom asks for the incoming connection. */
+    public static final int PHASE_INCOMING_NOTIFY_TO_CREATE = 0;
+    /** From {@code onCreateIncomingConnection} until the connection is set ringing. */
+    public static final int PHASE_INCOMING_CREATE_TO_RINGING = 1;
+    /** From {@code sendIncomingCallIntent} until the connection is set ringing. */
+    public static final int PHASE_INCOMING_NOTIFY_TO_RINGING = 2;
+    /** From {@code onCreateOutgoingConnection} until the connection is set dialing. */
+    public static final int PHASE_OUTGOING_CREATE_TO_DIALING = 3;
+    private static final int PHASE_COUNT = 4;
+
+    private static final String[] PHASE_NAMES = {
+            "incoming notify->create",
+            "incoming create->ringing",
+            "incoming notify->ringing",
+            "outgoing create->dialing",
+    };
+
+    /** Upper bounds, in milliseconds, of every histogram bucket but the last. */
+    private static final int[] BUCKET_LIMITS_MILLIS = { 50, 100, 200, 500, 1000, 2000, 5000 };
+    private static final int BUCKET_COUNT = BUCKET_LIMITS_MILLIS.length + 1;
+
+    private static final int RECENT_SPAN_COUNT = 64;
+
+    private static final Object sLock = new Object();
+
+    // Ring buffer of the most recent spans, one slot per index across the three arrays.
+    private static final long[] sRecentEndTimes = new long[RECENT_SPAN_COUNT];
+    private static final int[] sRecentDurations = new int[RECENT_SPAN_COUNT];
+    private static final int[] sRecentPhases = new int[RECENT_SPAN_COUNT];
+    private static int sRecentNext;
+    private static int sRecentSize;
+
+    private static final int[][] sHistograms = new int[PHASE_COUNT][BUCKET_COUNT];
+    private static final int[] sCounts = new int[PHASE_COUNT];
+    private static final long[] sTotalMillis = new long[PHASE_COUNT];
+    private static final int[] sMinMillis = new int[PHASE_COUNT];
+    private static final int[] sMaxMillis = new int[PHASE_COUNT];
+
+    /** Incoming call notification times, keyed by phone id. */
+    private static final SparseLongArray sIncomingNotifyTimes = new SparseLongArray(2);
 
     /** This class is never instantiated. */
     private Profiler() {
     }
 
-    static void profileViewCreate(Window win, String tag) {
-        if (false) {
-            ViewParent p = (ViewParent) win.getDecorView();
-            while (p instanceof View) {
-                p = ((View) p).getParent();
-            }
-            //((ViewRoot)p).profile();
-            //((ViewRoot)p).setProfileTag(tag);
-        }
+    /**
+     * Starts a span for the given phase.
+     *
+     * @return The start time of the span, to be handed back to {@link #end} or {@link #cancel}.
+     */
+    public static long begin(int phase) {
+        long startMillis = SystemClock.elapsedRealtime();
+        Trace.asyncTraceBegin(Trace.TRACE_TAG_APP, PHASE_NAMES[phase], (int) startMillis);
+        return startMillis;
     }
 
-    static void callScreenRequested() {
-        if (PROFILE) {
-            sTimeCallScreenRequested = SystemClock.uptimeMillis();
-        }
+    /**
+     * Ends a span started by {@link #begin} and records its duration.
+     */
+    public static void end(int phase, long startMillis) {
+        long endMillis = SystemClock.elapsedRealtime();
+        Trace.asyncTraceEnd(Trace.TRACE_TAG_APP, PHASE_NAMES[phase], (int) startMillis);
+        record(phase, endMillis, endMillis - startMillis);
     }
 
-    static void callScreenOnCreate() {
-        if (PROFILE) {
-            sTimeCallScreenOnCreate = SystemClock.uptimeMillis();
-        }
+    /**
+     * Records a span which was not started by {@link #begin}, e.g. one which covers several
+     * other phases and so needs no systrace section of its own.
+     */
+    public static void record(int phase, long startMillis) {
+        long endMillis = SystemClock.elapsedRealtime();
+        record(phase, endMillis, endMillis - startMillis);
     }
 
-    static void callScreenCreated() {
-        if (PROFILE) {
-            sTimeCallScreenCreated = SystemClock.uptimeMillis();
-            dumpCallScreenStat();
-        }
+    /**
+     * Ends a span started by {@link #begin} without recording it, e.g. because the call failed
+     * before reaching the end of the phase.
+     */
+    public static void cancel(int phase, long startMillis) {
+        Trace.asyncTraceEnd(Trace.TRACE_TAG_APP, PHASE_NAMES[phase], (int) startMillis);
     }
 
-    private static void dumpCallScreenStat() {
-        if (PROFILE) {
-            log(">>> call screen perf stats <<<");
-            log(">>> request -> onCreate = " +
-                    (sTimeCallScreenOnCreate - sTimeCallScreenRequested));
-            log(">>> onCreate -> created = " +
-                    (sTimeCallScreenCreated - sTimeCallScreenOnCreate));
+    /**
+     * Notes that an incoming call on the given phone has been handed to telecom. The time is
+     * picked up again by {@link #takeIncomingCallNotified} once telecom creates the connection.
+     */
+    public static void markIncomingCallNotified(int phoneId) {
+        long startMillis = begin(PHASE_INCOMING_NOTIFY_TO_CREATE);
+        synchronized (sLock) {
+            sIncomingNotifyTimes.put(phoneId, startMillis);
         }
     }
 
-    static void incomingCallPanelRequested() {
-        if (PROFILE) {
-            sTimeIncomingCallPanelRequested = SystemClock.uptimeMillis();
+    /**
+     * Ends the notify span of the last incoming call on the given phone.
+     *
+     * @return The time at which the incoming call was notified, or 0 if there was none.
+     */
+    public static long takeIncomingCallNotified(int phoneId) {
+        long startMillis;
+        synchronized (sLock) {
+            startMillis = sIncomingNotifyTimes.get(phoneId);
+            sIncomingNotifyTimes.delete(phoneId);
         }
+        if (startMillis != 0) {
+            end(PHASE_INCOMING_NOTIFY_TO_CREATE, startMillis);
+        }
+        return startMillis;
     }
 
-    static void incomingCallPanelOnCreate() {
-        if (PROFILE) {
-            sTimeIncomingCallPanelOnCreate = SystemClock.uptimeMillis();
+    private static void record(int phase, long endMillis, long durationMillis) {
+        int duration = (int) Math.min(durationMillis, Integer.MAX_VALUE);
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MILLIS.length && duration > BUCKET_LIMITS_MILLIS[bucket]) {
+            bucket++;
         }
-    }
 
-    static void incomingCallPanelCreated() {
-        if (PROFILE) {
-            sTimeIncomingCallPanelCreated = SystemClock.uptimeMillis();
-            dumpIncomingCallPanelStat();
+        synchronized (sLock) {
+            sRecentEndTimes[sRecentNext] = endMillis;
+            sRecentDurations[sRecentNext] = duration;
+            sRecentPhases[sRecentNext] = phase;
+            sRecentNext = (sRecentNext + 1) % RECENT_SPAN_COUNT;
+            if (sRecentSize < RECENT_SPAN_COUNT) {
+                sRecentSize++;
+            }
+
+            sHistograms[phase][bucket]++;
+            if (sCounts[phase] == 0 || duration < sMinMillis[phase]) {
+                sMinMillis[phase] = duration;
+            }
+            if (duration > sMaxMillis[phase]) {
+                sMaxMillis[phase] = duration;
+            }
+            sCounts[phase]++;
+            sTotalMillis[phase] += duration;
         }
+
+        log(PHASE_NAMES[phase] + ": " + duration + "ms");
     }
 
-    private static void dumpIncomingCallPanelStat() {
-        if (PROFILE) {
-            log(">>> incoming call panel perf stats <<<");
-            log(">>> request -> onCreate = " +
-                    (sTimeIncomingCallPanelOnCreate - sTimeIncomingCallPanelRequested));
-            log(">>> onCreate -> created = " +
-                    (sTimeIncomingCallPanelCreated - sTimeIncomingCallPanelOnCreate));
+    /**
+     * Prints the per-phase latency histograms and the most recent spans.
+     */
+    public static void dump(PrintWriter pw) {
+        long nowMillis = SystemClock.elapsedRealtime();
+        synchronized (sLock) {
+            pw.println("Call setup latency:");
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                int count = sCounts[phase];
+                pw.print("  " + PHASE_NAMES[phase] + ": count=" + count);
+                if (count > 0) {
+                    pw.print(" min=" + sMinMillis[phase] + "ms avg="
+                            + (sTotalMillis[phase] / count) + "ms max=" + sMaxMillis[phase] + "ms");
+                }
+                pw.println();
+                if (count == 0) {
+                    continue;
+                }
+                pw.print("    ");
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    if (bucket < BUCKET_LIMITS_MILLIS.length) {
+                        pw.print("<=" + BUCKET_LIMITS_MILLIS[bucket] + "ms:");
+                    } else {
+                        pw.print(">" + BUCKET_LIMITS_MILLIS[bucket - 1] + "ms:");
+                    }
+                    pw.print(sHistograms[phase][bucket] + " ");
+                }
+                pw.println();
+            }
+
+            pw.println("Recent call setup spans:");
+            int index = (sRecentNext - sRecentSize + RECENT_SPAN_COUNT) % RECENT_SPAN_COUNT;
+            for (int i = 0; i < sRecentSize; i++) {
+                pw.println("  -" + (nowMillis - sRecentEndTimes[index]) + "ms "
+                        + PHASE_NAMES[sRecentPhases[index]] + ": "
+                        + sRecentDurations[index] + "ms");
+                index = (index + 1) % RECENT_SPAN_COUNT;
+            }
         }
     }
 
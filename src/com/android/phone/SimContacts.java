@@ -58,6 +58,8 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * SIM Address Book UI for the Phone app.
@@ -80,6 +82,10 @@ public class SimContacts extends ADNList {
 
     private static final String SCHEME_SMSTO = "smsto";
 
+    // Upper bound on the number of operations sent to the contacts provider in one applyBatch()
+    // call when importing all contacts. The provider rejects batches of more than 500 operations.
+    private static final int MAX_OPERATIONS_PER_BATCH = 400;
+
     private ProgressDialog mProgressDialog;
 
     private Account mAccount;
@@ -120,13 +126,37 @@ public class SimContacts extends ADNList {
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
             final ContentResolver resolver = getContentResolver();
+            final Set<String> existingContacts = queryExistingContacts(resolver, mAccount);
+            final ArrayList<ContentProviderOperation> operationList =
+                    new ArrayList<ContentProviderOperation>();
+            int contactsInBatch = 0;
 
+            // Pack as many contacts as fit into each batch, so that importing a large SIM does
+            // not cost one provider transaction per contact.
             mCursor.moveToPosition(-1);
             while (!mCanceled && mCursor.moveToNext()) {
-                actuallyImportOneSimContact(mCursor, resolver, mAccount);
-                mProgressDialog.incrementProgressBy(1);
+                final NamePhoneTypePair namePhoneTypePair =
+                        new NamePhoneTypePair(mCursor.getString(NAME_COLUMN));
+                final String phoneNumber = mCursor.getString(NUMBER_COLUMN);
+                if (!existingContacts.add(getContactKey(namePhoneTypePair.name, phoneNumber))) {
+                    // Already present in the account, e.g. from an earlier import.
+                    mProgressDialog.incrementProgressBy(1);
+                    continue;
+                }
+
+                addSimContactOperations(mCursor, operationList, mAccount);
+                contactsInBatch++;
+                if (operationList.size() >= MAX_OPERATIONS_PER_BATCH) {
+                    applyBatch(resolver, operationList);
+                    mProgressDialog.incrementProgressBy(contactsInBatch);
+                    operationList.clear();
+                    contactsInBatch = 0;
+                }
+            }
+            if (!mCanceled && !operationList.isEmpty()) {
+                applyBatch(resolver, operationList);
+                mProgressDialog.incrementProgressBy(contactsInBatch);
             }
 
             if (mIsForeground) {
@@ -151,6 +181,19 @@ public class SimContacts extends ADNList {
 
     private static void actuallyImportOneSimContact(
             final Cursor cursor, final ContentResolver resolver, Account account) {
+        final ArrayList<ContentProviderOperation> operationList =
+            new ArrayList<ContentProviderOperation>();
+        addSimContactOperations(cursor, operationList, account);
+        applyBatch(resolver, operationList);
+    }
+
+    /**
+     * Appends the operations which insert the SIM contact at the cursor's position to
+     * {@code operationList}. Back references point at the raw contact insert added here, so
+     * several contacts can be inserted in the same batch.
+     */
+    private static void addSimContactOperations(final Cursor cursor,
+            final ArrayList<ContentProviderOperation> operationList, Account account) {
         final NamePhoneTypePair namePhoneTypePair =
             new NamePhoneTypePair(cursor.getString(NAME_COLUMN));
         final String name = namePhoneTypePair.name;
@@ -164,10 +207,11 @@ public class SimContacts extends ADNList {
             emailAddressArray = null;
         }
 
-        final ArrayList<ContentProviderOperation> operationList =
-            new ArrayList<ContentProviderOperation>();
+        final int rawContactIndex = operationList.size();
         ContentProviderOperation.Builder builder =
             ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
+        // Let the provider yield between contacts when many are applied in one batch.
+        builder.withYieldAllowed(true);
         String myGroupsId = null;
         if (account != null) {
             builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
@@ -178,13 +222,13 @@ public class SimContacts extends ADNList {
         operationList.add(builder.build());
 
         builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, rawContactIndex);
         builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
         builder.withValue(StructuredName.DISPLAY_NAME, name);
         operationList.add(builder.build());
 
         builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, rawContactIndex);
         builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
         builder.withValue(Phone.TYPE, phoneType);
         builder.withValue(Phone.NUMBER, phoneNumber);
@@ -194,7 +238,7 @@ public class SimContacts extends ADNList {
         if (emailAddresses != null) {
             for (String emailAddress : emailAddressArray) {
                 builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, rawContactIndex);
                 builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
                 builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
                 builder.withValue(Email.DATA, emailAddress);
@@ -204,12 +248,16 @@ public class SimContacts extends ADNList {
 
         if (myGroupsId != null) {
             builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID, 0);
+            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID,
+                    rawContactIndex);
             builder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
             builder.withValue(GroupMembership.GROUP_SOURCE_ID, myGroupsId);
             operationList.add(builder.build());
         }
+    }
 
+    private static void applyBatch(final ContentResolver resolver,
+            final ArrayList<ContentProviderOperation> operationList) {
         try {
             resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
         } catch (RemoteException e) {
@@ -219,6 +267,50 @@ public class SimContacts extends ADNList {
         }
     }
 
+    /**
+     * Returns the name/number keys (see {@link #getContactKey}) of the phone numbers already
+     * stored for the account, using a single query.
+     */
+    private static Set<String> queryExistingContacts(final ContentResolver resolver,
+            Account account) {
+        final Set<String> keys = new HashSet<String>();
+        final String selection;
+        final String[] selectionArgs;
+        if (account != null) {
+            selection = Data.MIMETYPE + "=? AND " + RawContacts.ACCOUNT_NAME + "=? AND "
+                    + RawContacts.ACCOUNT_TYPE + "=?";
+            selectionArgs = new String[] { Phone.CONTENT_ITEM_TYPE, account.name, account.type };
+        } else {
+            selection = Data.MIMETYPE + "=? AND " + RawContacts.ACCOUNT_NAME + " IS NULL AND "
+                    + RawContacts.ACCOUNT_TYPE + " IS NULL";
+            selectionArgs = new String[] { Phone.CONTENT_ITEM_TYPE };
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(Data.CONTENT_URI,
+                    new String[] { Data.DISPLAY_NAME, Phone.NUMBER }, selection, selectionArgs,
+                    null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    keys.add(getContactKey(cursor.getString(0), cursor.getString(1)));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Not being able to dedupe is not fatal; just import everything.
+            Log.e(LOG_TAG, "Failed to query existing contacts: " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return keys;
+    }
+
+    private static String getContactKey(String name, String phoneNumber) {
+        return name + '\n' + PhoneNumberUtils.normalizeNumber(phoneNumber);
+    }
+
     private void importOneSimContact(int position) {
         final ContentResolver resolver = getContentResolver();
         if (mCursor.moveToPosition(position)) {
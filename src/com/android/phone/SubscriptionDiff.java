@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.telephony.SubscriptionInfo;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The subscription ids added and removed between two sets of active subscriptions.
+ *
+ * Subscription sets are kept as sorted int arrays, so that the diff is a single merge pass and
+ * membership checks are binary searches. This lets listeners of
+ * {@link android.telephony.SubscriptionManager.OnSubscriptionsChangedListener}, which fires many
+ * times during boot and SIM provisioning, only touch the subscriptions which actually changed.
+ */
+public final class SubscriptionDiff {
+    public static final int[] NO_SUB_IDS = new int[0];
+
+    /** The subscription ids which are only in the new set, in ascending order. */
+    public final int[] added;
+    /** The subscription ids which are only in the old set, in ascending order. */
+    public final int[] removed;
+
+    private SubscriptionDiff(int[] added, int[] removed) {
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * @return {@code true} if both sets held the same subscription ids.
+     */
+    public boolean isEmpty() {
+        return added.length == 0 && removed.length == 0;
+    }
+
+    /**
+     * Returns the subscription ids of the given subscriptions in ascending order.
+     *
+     * @param subInfos The subscriptions, as returned by
+     *         {@link android.telephony.SubscriptionManager#getActiveSubscriptionInfoList()}.
+     *         May be null.
+     */
+    public static int[] getSortedSubIds(List<SubscriptionInfo> subInfos) {
+        if (subInfos == null || subInfos.isEmpty()) {
+            return NO_SUB_IDS;
+        }
+        int[] subIds = new int[subInfos.size()];
+        for (int i = 0; i < subIds.length; i++) {
+            subIds[i] = subInfos.get(i).getSubscriptionId();
+        }
+        Arrays.sort(subIds);
+        return subIds;
+    }
+
+    /**
+     * @return {@code true} if the sorted set of subscription ids contains the given id.
+     */
+    public static boolean contains(int[] sortedSubIds, int subId) {
+        return Arrays.binarySearch(sortedSubIds, subId) >= 0;
+    }
+
+    /**
+     * Computes the ids added and removed between two sorted sets of subscription ids.
+     */
+    public static SubscriptionDiff compute(int[] oldSubIds, int[] newSubIds) {
+        int[] added = new int[newSubIds.length];
+        int[] removed = new int[oldSubIds.length];
+        int addedCount = 0;
+        int removedCount = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < oldSubIds.length || j < newSubIds.length) {
+            if (j == newSubIds.length
+                    || (i < oldSubIds.length && oldSubIds[i] < newSubIds[j])) {
+                removed[removedCount++] = oldSubIds[i++];
+            } else if (i == oldSubIds.length || newSubIds[j] < oldSubIds[i]) {
+                added[addedCount++] = newSubIds[j++];
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        return new SubscriptionDiff(trim(added, addedCount), trim(removed, removedCount));
+    }
+
+    private static int[] trim(int[] subIds, int count) {
+        if (count == 0) {
+            return NO_SUB_IDS;
+        }
+        return count == subIds.length ? subIds : Arrays.copyOf(subIds, count);
+    }
+}
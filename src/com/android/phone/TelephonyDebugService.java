@@ -17,6 +17,8 @@
 package com.android.phone;
 
 import com.android.internal.telephony.DebugService;
+import com.android.phone.vvm.omtp.VvmEventLog;
+
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
@@ -48,6 +50,10 @@ public class TelephonyDebugService extends Service {
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mDebugService.dump(fd, pw, args);
+        pw.println();
+        Profiler.dump(pw);
+        pw.println();
+        VvmEventLog.dump(pw);
     }
 }
 
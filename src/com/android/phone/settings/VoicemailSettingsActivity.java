@@ -221,7 +221,7 @@ public class VoicemailSettingsActivity extends PreferenceActivity
         mSubscriptionInfoHelper.setActionBarTitle(
                 getActionBar(), getResources(), R.string.voicemail_settings_with_label);
         mPhone = mSubscriptionInfoHelper.getPhone();
-        mOmtpVvmCarrierConfigHelper = new OmtpVvmCarrierConfigHelper(
+        mOmtpVvmCarrierConfigHelper = OmtpVvmCarrierConfigHelper.getInstance(
                 mPhone.getContext(), mPhone.getSubId());
     }
 
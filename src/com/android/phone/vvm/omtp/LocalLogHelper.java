@@ -18,18 +18,26 @@ package com.android.phone.vvm.omtp;
 import com.android.internal.telephony.PhoneFactory;
 
 /**
- * Helper methods for adding to Telephony local logs.
+ * Helper methods for adding to Telephony local logs. Structured events, with timings, go to
+ * {@link VvmEventLog} instead.
  */
 public class LocalLogHelper {
     public static final String KEY = "OmtpVvm";
-    private static final int MAX_OMTP_VVM_LOGS = 20;
+    private static final int MAX_OMTP_VVM_LOGS = 100;
+
+    private static boolean sLocalLogAdded;
 
     public static void log(String tag, String log) {
-        try {
-            PhoneFactory.addLocalLog(KEY, MAX_OMTP_VVM_LOGS);
-        } catch (IllegalArgumentException e){
-        } finally {
-            PhoneFactory.localLog(KEY, tag + ": " + log);
+        synchronized (LocalLogHelper.class) {
+            if (!sLocalLogAdded) {
+                try {
+                    PhoneFactory.addLocalLog(KEY, MAX_OMTP_VVM_LOGS);
+                } catch (IllegalArgumentException e) {
+                    // Already added.
+                }
+                sLocalLogAdded = true;
+            }
         }
+        PhoneFactory.localLog(KEY, tag + ": " + log);
     }
 }
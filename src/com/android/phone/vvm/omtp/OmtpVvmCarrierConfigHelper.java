@@ -24,6 +24,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.phone.vvm.omtp.sms.OmtpCvvmMessageSender;
 import com.android.phone.vvm.omtp.sms.OmtpMessageSender;
@@ -32,37 +33,85 @@ import com.android.phone.vvm.omtp.sms.OmtpStandardMessageSender;
 /**
  * Handle activation and deactivation of a visual voicemail source. This class is necessary to
  * retrieve carrier vvm configuration details before sending the appropriate texts.
+ *
+ * The vvm settings of each subscription are read from the carrier config once and shared by all
+ * the vvm components through {@link #getInstance}, until {@link #invalidate} is called when the
+ * carrier config changes.
  */
 public class OmtpVvmCarrierConfigHelper {
     private static final String TAG = "OmtpVvmCarrierConfigHelper";
-    private Context mContext;
-    private int mSubId;
-    private PersistableBundle mCarrierConfig;
-    private String mVvmType;
 
-    public OmtpVvmCarrierConfigHelper(Context context, int subId) {
+    /** The helpers handed out by {@link #getInstance}, by subscription id. Guarded by itself. */
+    private static final SparseArray<OmtpVvmCarrierConfigHelper> sInstances =
+            new SparseArray<OmtpVvmCarrierConfigHelper>();
+
+    private final Context mContext;
+    private final int mSubId;
+    private final boolean mHasCarrierConfig;
+    private final String mVvmType;
+    private final String mCarrierVvmPackageName;
+    private final int mApplicationPort;
+    private final String mDestinationNumber;
+
+    private OmtpMessageSender mMessageSender;
+    private boolean mMessageSenderCreated;
+
+    /**
+     * Returns the shared helper for the subscription, reading the carrier config if it has not
+     * been read since it last changed.
+     */
+    public static OmtpVvmCarrierConfigHelper getInstance(Context context, int subId) {
+        synchronized (sInstances) {
+            OmtpVvmCarrierConfigHelper helper = sInstances.get(subId);
+            if (helper == null) {
+                helper = new OmtpVvmCarrierConfigHelper(context.getApplicationContext(), subId);
+                sInstances.put(subId, helper);
+            }
+            return helper;
+        }
+    }
+
+    /**
+     * Drops the shared helper of the subscription, or of every subscription if the id is not
+     * valid. To be called when the carrier config changes.
+     */
+    public static void invalidate(int subId) {
+        synchronized (sInstances) {
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                sInstances.remove(subId);
+            } else {
+                sInstances.clear();
+            }
+        }
+    }
+
+    private OmtpVvmCarrierConfigHelper(Context context, int subId) {
         mContext = context;
         mSubId = subId;
-        mCarrierConfig = getCarrierConfig();
-        mVvmType = getVvmType();
+        PersistableBundle carrierConfig = getCarrierConfig();
+        mHasCarrierConfig = carrierConfig != null;
+        if (carrierConfig != null) {
+            mVvmType = carrierConfig.getString(CarrierConfigManager.KEY_VVM_TYPE_STRING, null);
+            mCarrierVvmPackageName = carrierConfig.getString(
+                    CarrierConfigManager.KEY_CARRIER_VVM_PACKAGE_NAME_STRING, null);
+            mApplicationPort = carrierConfig.getInt(
+                    CarrierConfigManager.KEY_VVM_PORT_NUMBER_INT, 0);
+            mDestinationNumber = carrierConfig.getString(
+                    CarrierConfigManager.KEY_VVM_DESTINATION_NUMBER_STRING);
+        } else {
+            mVvmType = null;
+            mCarrierVvmPackageName = null;
+            mApplicationPort = 0;
+            mDestinationNumber = null;
+        }
     }
 
     public String getVvmType() {
-        if (mCarrierConfig == null) {
-            return null;
-        }
-
-        return mCarrierConfig.getString(
-                CarrierConfigManager.KEY_VVM_TYPE_STRING, null);
+        return mVvmType;
     }
 
     public String getCarrierVvmPackageName() {
-        if (mCarrierConfig == null) {
-            return null;
-        }
-
-        return mCarrierConfig.getString(
-                CarrierConfigManager.KEY_CARRIER_VVM_PACKAGE_NAME_STRING, null);
+        return mCarrierVvmPackageName;
     }
 
     public boolean isOmtpVvmType() {
@@ -75,8 +124,7 @@ public class OmtpVvmCarrierConfigHelper {
      * so by checking if the carrier's voicemail app is installed.
      */
     public boolean isEnabledByDefault() {
-        String packageName = mCarrierConfig.getString(
-                CarrierConfigManager.KEY_CARRIER_VVM_PACKAGE_NAME_STRING);
+        String packageName = mCarrierVvmPackageName;
         if (packageName == null) {
             return true;
         }
@@ -120,16 +168,22 @@ public class OmtpVvmCarrierConfigHelper {
         return carrierConfigManager.getConfigForSubId(mSubId);
     }
 
-    private OmtpMessageSender getMessageSender() {
-        if (mCarrierConfig == null) {
+    private synchronized OmtpMessageSender getMessageSender() {
+        if (!mMessageSenderCreated) {
+            mMessageSender = createMessageSender();
+            mMessageSenderCreated = true;
+        }
+        return mMessageSender;
+    }
+
+    private OmtpMessageSender createMessageSender() {
+        if (!mHasCarrierConfig) {
             Log.w(TAG, "Empty carrier config.");
             return null;
         }
 
-        int applicationPort = mCarrierConfig.getInt(
-                CarrierConfigManager.KEY_VVM_PORT_NUMBER_INT, 0);
-        String destinationNumber = mCarrierConfig.getString(
-                CarrierConfigManager.KEY_VVM_DESTINATION_NUMBER_STRING);
+        int applicationPort = mApplicationPort;
+        String destinationNumber = mDestinationNumber;
         if (TextUtils.isEmpty(destinationNumber)) {
             Log.w(TAG, "No destination number for this carrier.");
             return null;
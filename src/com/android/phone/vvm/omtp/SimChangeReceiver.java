@@ -66,8 +66,9 @@ public class SimChangeReceiver extends BroadcastReceiver {
             case CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED:
                 int subId = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
                         SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+                OmtpVvmCarrierConfigHelper.invalidate(subId);
                 OmtpVvmCarrierConfigHelper carrierConfigHelper =
-                        new OmtpVvmCarrierConfigHelper(context, subId);
+                        OmtpVvmCarrierConfigHelper.getInstance(context, subId);
 
                 if (carrierConfigHelper.isOmtpVvmType()) {
                     PhoneAccountHandle phoneAccount = PhoneUtils.makePstnPhoneAccountHandle(
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.vvm.omtp;
+
+import android.os.SystemClock;
+import android.telecom.PhoneAccountHandle;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Journal of the visual voicemail events of all the phone accounts, for dumpsys.
+ *
+ * Events are typed and kept as primitive records in a preallocated ring buffer, so logging one
+ * allocates nothing and many more of them fit than in the free-text {@link LocalLogHelper}.
+ * Timed events carry the duration of the step they describe, from which {@link #dump} computes
+ * per-account latency percentiles and download throughput.
+ */
+public final class VvmEventLog {
+    public static final int EVENT_SYNC_SMS_RECEIVED = 0;
+    public static final int EVENT_STATUS_SMS_RECEIVED = 1;
+    public static final int EVENT_NETWORK_REQUESTED = 2;
+    /** Timed from the network request. */
+    public static final int EVENT_NETWORK_AVAILABLE = 3;
+    public static final int EVENT_NETWORK_LOST = 4;
+    /** Timed from the network request. */
+    public static final int EVENT_NETWORK_UNAVAILABLE = 5;
+    /** Connecting, logging in and selecting the inbox. Value is 1 on success, 0 on failure. */
+    public static final int EVENT_IMAP_OPEN = 6;
+    /** Fetching the structure of every message. Value is the number of voicemails fetched. */
+    public static final int EVENT_FETCH_VOICEMAILS = 7;
+    /** Fetching the audio of one voicemail. Value is the number of bytes fetched. */
+    public static final int EVENT_FETCH_PAYLOAD = 8;
+    /** Value is the delay before the retry, in milliseconds. */
+    public static final int EVENT_RETRY_SCHEDULED = 9;
+    private static final int EVENT_COUNT = 10;
+
+    private static final String[] EVENT_NAMES = {
+            "sync sms",
+            "status sms",
+            "network requested",
+            "network available",
+            "network lost",
+            "network unavailable",
+            "imap open",
+            "fetch voicemails",
+            "fetch payload",
+            "retry scheduled",
+    };
+
+    private static final int NO_DURATION = -1;
+    private static final int CAPACITY = 512;
+    /** Accounts beyond this many share the last account slot. */
+    private static final int MAX_ACCOUNTS = 8;
+
+    private static final Object sLock = new Object();
+
+    // Ring buffer of the most recent events, one slot per index across the arrays.
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final byte[] sTypes = new byte[CAPACITY];
+    private static final byte[] sAccounts = new byte[CAPACITY];
+    private static final int[] sDurations = new int[CAPACITY];
+    private static final long[] sValues = new long[CAPACITY];
+    private static int sNext;
+    private static int sSize;
+
+    /** The ids of the phone accounts seen so far, indexed by account slot. */
+    private static final String[] sAccountIds = new String[MAX_ACCOUNTS];
+
+    /** This class is never instantiated. */
+    private VvmEventLog() {
+    }
+
+    public static void log(int event, PhoneAccountHandle phoneAccount) {
+        add(event, phoneAccount, NO_DURATION, 0);
+    }
+
+    public static void log(int event, PhoneAccountHandle phoneAccount, long value) {
+        add(event, phoneAccount, NO_DURATION, value);
+    }
+
+    /**
+     * Logs an event which took from {@code startMillis}, on the
+     * {@link SystemClock#elapsedRealtime()} clock, until now.
+     */
+    public static void logTimed(int event, PhoneAccountHandle phoneAccount, long startMillis,
+            long value) {
+        long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+        add(event, phoneAccount, (int) Math.min(durationMillis, Integer.MAX_VALUE), value);
+    }
+
+    private static void add(int event, PhoneAccountHandle phoneAccount, int duration,
+            long value) {
+        long now = SystemClock.elapsedRealtime();
+        String accountId = phoneAccount != null ? phoneAccount.getId() : null;
+        synchronized (sLock) {
+            sTimes[sNext] = now;
+            sTypes[sNext] = (byte) event;
+            sAccounts[sNext] = (byte) getAccountSlot(accountId);
+            sDurations[sNext] = duration;
+            sValues[sNext] = value;
+            sNext = (sNext + 1) % CAPACITY;
+            if (sSize < CAPACITY) {
+                sSize++;
+            }
+        }
+    }
+
+    private static int getAccountSlot(String accountId) {
+        int slot = 0;
+        while (slot < MAX_ACCOUNTS - 1 && sAccountIds[slot] != null
+                && !sAccountIds[slot].equals(accountId)) {
+            slot++;
+        }
+        if (sAccountIds[slot] == null) {
+            sAccountIds[slot] = accountId;
+        }
+        return slot;
+    }
+
+    /**
+     * Prints the latency percentiles of the timed events of each account, followed by every event
+     * in the journal, oldest first.
+     */
+    public static void dump(PrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sLock) {
+            int first = (sNext - sSize + CAPACITY) % CAPACITY;
+            int[] durations = new int[sSize];
+
+            pw.println("Visual voicemail latency:");
+            for (int slot = 0; slot < MAX_ACCOUNTS && sAccountIds[slot] != null; slot++) {
+                pw.println("  account " + slot + ": " + sAccountIds[slot]);
+                for (int event = 0; event < EVENT_COUNT; event++) {
+                    int count = 0;
+                    long totalMillis = 0;
+                    long totalValue = 0;
+                    for (int i = 0, index = first; i < sSize; i++, index = (index + 1) % CAPACITY) {
+                        if (sAccounts[index] == slot && sTypes[index] == event
+                                && sDurations[index] != NO_DURATION) {
+                            durations[count++] = sDurations[index];
+                            totalMillis += sDurations[index];
+                            totalValue += sValues[index];
+                        }
+                    }
+                    if (count == 0) {
+                        continue;
+                    }
+                    Arrays.sort(durations, 0, count);
+                    pw.print("    " + EVENT_NAMES[event] + ": count=" + count
+                            + " p50=" + percentile(durations, count, 50) + "ms"
+                            + " p90=" + percentile(durations, count, 90) + "ms"
+                            + " p99=" + percentile(durations, count, 99) + "ms");
+                    if (event == EVENT_FETCH_PAYLOAD && totalMillis > 0) {
+                        pw.print(" throughput=" + (totalValue * 1000 / totalMillis) + "B/s");
+                    }
+                    pw.println();
+                }
+            }
+
+            pw.println("Visual voicemail events (age, account, event, duration, value):");
+            for (int i = 0, index = first; i < sSize; i++, index = (index + 1) % CAPACITY) {
+                pw.println("  -" + (now - sTimes[index]) + "ms " + sAccounts[index] + " "
+                        + EVENT_NAMES[sTypes[index]] + " "
+                        + (sDurations[index] == NO_DURATION ? "-" : sDurations[index] + "ms")
+                        + " " + sValues[index]);
+            }
+        }
+    }
+
+    private static int percentile(int[] sorted, int count, int percent) {
+        // Nearest rank.
+        int rank = (count * percent + 99) / 100;
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
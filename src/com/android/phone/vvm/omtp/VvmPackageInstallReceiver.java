@@ -50,7 +50,7 @@ public class VvmPackageInstallReceiver extends BroadcastReceiver {
                 continue;
             }
 
-            OmtpVvmCarrierConfigHelper carrierConfigHelper = new OmtpVvmCarrierConfigHelper(
+            OmtpVvmCarrierConfigHelper carrierConfigHelper = OmtpVvmCarrierConfigHelper.getInstance(
                     context, PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount));
             if (packageName.equals(carrierConfigHelper.getCarrierVvmPackageName())) {
                 VisualVoicemailSettingsUtil.setVisualVoicemailEnabled(
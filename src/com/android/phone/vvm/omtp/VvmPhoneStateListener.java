@@ -58,7 +58,7 @@ public class VvmPhoneStateListener extends PhoneStateListener {
 
         if (state == ServiceState.STATE_IN_SERVICE) {
             VoicemailStatusQueryHelper voicemailStatusQueryHelper =
-                    new VoicemailStatusQueryHelper(mContext);
+                    VoicemailStatusQueryHelper.getInstance(mContext);
             if (voicemailStatusQueryHelper.isVoicemailSourceConfigured(mPhoneAccount)) {
                 if (!voicemailStatusQueryHelper.isNotificationsChannelActive(mPhoneAccount)) {
                     Log.v(TAG, "Notifications channel is active for " + mPhoneAccount.getId());
@@ -66,6 +66,7 @@ public class VvmPhoneStateListener extends PhoneStateListener {
                             VoicemailContract.Status.CONFIGURATION_STATE_OK,
                             VoicemailContract.Status.DATA_CHANNEL_STATE_OK,
                             VoicemailContract.Status.NOTIFICATION_CHANNEL_STATE_OK);
+                    voicemailStatusQueryHelper.invalidate();
                     PhoneGlobals.getInstance().clearMwiIndicator(
                             PhoneUtils.getSubIdForPhoneAccountHandle(mPhoneAccount));
                 }
@@ -88,8 +89,9 @@ public class VvmPhoneStateListener extends PhoneStateListener {
                 // Otherwise initiate an activation because this means that an OMTP source was
                 // recognized but either the activation text was not successfully sent or a response
                 // was not received.
-                OmtpVvmCarrierConfigHelper carrierConfigHelper = new OmtpVvmCarrierConfigHelper(
-                        mContext, PhoneUtils.getSubIdForPhoneAccountHandle(mPhoneAccount));
+                OmtpVvmCarrierConfigHelper carrierConfigHelper =
+                        OmtpVvmCarrierConfigHelper.getInstance(mContext,
+                                PhoneUtils.getSubIdForPhoneAccountHandle(mPhoneAccount));
                 carrierConfigHelper.startActivation();
             }
         } else {
@@ -106,6 +108,7 @@ public class VvmPhoneStateListener extends PhoneStateListener {
                     VoicemailContract.Status.CONFIGURATION_STATE_OK,
                     VoicemailContract.Status.DATA_CHANNEL_STATE_NO_CONNECTION,
                     VoicemailContract.Status.NOTIFICATION_CHANNEL_STATE_NO_CONNECTION);
+            VoicemailStatusQueryHelper.getInstance(mContext).invalidate();
         }
         mPreviousState = state;
     }
@@ -113,7 +113,7 @@ public class FetchVoicemailReceiver extends BroadcastReceiver {
 
                     int subId = PhoneUtils.getSubIdForPhoneAccountHandle(mPhoneAccount);
                     OmtpVvmCarrierConfigHelper carrierConfigHelper =
-                            new OmtpVvmCarrierConfigHelper(context, subId);
+                            OmtpVvmCarrierConfigHelper.getInstance(context, subId);
 
                     if (TelephonyManager.VVM_TYPE_CVVM.equals(carrierConfigHelper.getVvmType())) {
                         fetchVoicemail(null);
@@ -17,6 +17,7 @@ package com.android.phone.vvm.omtp.imap;
 
 import android.content.Context;
 import android.net.Network;
+import android.os.SystemClock;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import android.telephony.TelephonyManager;
@@ -40,6 +41,7 @@ import com.android.phone.common.mail.utils.LogUtils;
 import com.android.phone.settings.VisualVoicemailSettingsUtil;
 import com.android.phone.vvm.omtp.OmtpConstants;
 import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VvmEventLog;
 import com.android.phone.vvm.omtp.fetch.VoicemailFetchedCallback;
 
 import libcore.io.IoUtils;
@@ -79,8 +81,9 @@ public class ImapHelper {
                             OmtpConstants.IMAP_PORT, phoneAccount));
             int auth = ImapStore.FLAG_NONE;
 
-            OmtpVvmCarrierConfigHelper carrierConfigHelper = new OmtpVvmCarrierConfigHelper(context,
-                    PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount));
+            OmtpVvmCarrierConfigHelper carrierConfigHelper =
+                    OmtpVvmCarrierConfigHelper.getInstance(context,
+                            PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount));
             if (TelephonyManager.VVM_TYPE_CVVM.equals(carrierConfigHelper.getVvmType())) {
                 // TODO: move these into the carrier config app
                 port = 993;
@@ -153,6 +156,7 @@ public class ImapHelper {
                 // This means we were unable to successfully open the folder.
                 return null;
             }
+            long startMillis = SystemClock.elapsedRealtime();
 
             // This method retrieves lightweight messages containing only the uid of the message.
             messages = mFolder.getMessages(null);
@@ -164,6 +168,8 @@ public class ImapHelper {
                     result.add(voicemail);
                 }
             }
+            VvmEventLog.logTimed(VvmEventLog.EVENT_FETCH_VOICEMAILS, mPhoneAccount, startMillis,
+                    result.size());
             return result;
         } catch (MessagingException e) {
             LogUtils.e(TAG, e, "Messaging Exception");
@@ -203,12 +209,15 @@ public class ImapHelper {
                 // This means we were unable to successfully open the folder.
                 return false;
             }
+            long startMillis = SystemClock.elapsedRealtime();
             message = mFolder.getMessage(uid);
             VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
 
             if (voicemailPayload == null) {
                 return false;
             }
+            VvmEventLog.logTimed(VvmEventLog.EVENT_FETCH_PAYLOAD, mPhoneAccount, startMillis,
+                    voicemailPayload.getBytes() != null ? voicemailPayload.getBytes().length : 0);
 
             callback.setVoicemailContent(voicemailPayload);
             return true;
@@ -383,16 +392,19 @@ public class ImapHelper {
     }
 
     private ImapFolder openImapFolder(String modeReadWrite) {
+        long startMillis = SystemClock.elapsedRealtime();
         try {
             if (mImapStore == null) {
                 return null;
             }
             ImapFolder folder = new ImapFolder(mImapStore, ImapConstants.INBOX);
             folder.open(modeReadWrite);
+            VvmEventLog.logTimed(VvmEventLog.EVENT_IMAP_OPEN, mPhoneAccount, startMillis, 1);
             return folder;
         } catch (MessagingException e) {
             LogUtils.e(TAG, e, "Messaging Exception");
         }
+        VvmEventLog.logTimed(VvmEventLog.EVENT_IMAP_OPEN, mPhoneAccount, startMillis, 0);
         return null;
     }
 
@@ -32,9 +32,11 @@ import com.android.phone.PhoneUtils;
 import com.android.phone.settings.VisualVoicemailSettingsUtil;
 import com.android.phone.vvm.omtp.LocalLogHelper;
 import com.android.phone.vvm.omtp.OmtpConstants;
+import com.android.phone.vvm.omtp.VvmEventLog;
 import com.android.phone.vvm.omtp.sync.OmtpVvmSourceManager;
 import com.android.phone.vvm.omtp.sync.OmtpVvmSyncService;
-import com.android.phone.vvm.omtp.sync.VoicemailsQueryHelper;
+import com.android.phone.vvm.omtp.sync.VoicemailInserter;
+import com.android.phone.vvm.omtp.sync.VoicemailStatusQueryHelper;
 
 /**
  * Receive SMS messages and send for processing by the OMTP visual voicemail source.
@@ -79,10 +81,12 @@ public class OmtpMessageReceiver extends BroadcastReceiver {
                         " with event" + message.getSyncTriggerEvent());
                 LocalLogHelper.log(TAG, "Received SYNC sms for " + mPhoneAccount.getId() +
                         " with event" + message.getSyncTriggerEvent());
+                VvmEventLog.log(VvmEventLog.EVENT_SYNC_SMS_RECEIVED, mPhoneAccount);
                 processSync(message);
             } else if (messageData.getPrefix() == OmtpConstants.STATUS_SMS_PREFIX) {
                 Log.v(TAG, "Received STATUS sms for " + mPhoneAccount.getId());
                 LocalLogHelper.log(TAG, "Received Status sms for " + mPhoneAccount.getId());
+                VvmEventLog.log(VvmEventLog.EVENT_STATUS_SMS_RECEIVED, mPhoneAccount);
                 StatusMessage message = new StatusMessage(messageData);
                 updateSource(message);
             } else {
@@ -110,8 +114,7 @@ public class OmtpMessageReceiver extends BroadcastReceiver {
                         .setDuration(message.getLength())
                         .setSourcePackage(mContext.getPackageName())
                         .build();
-                VoicemailsQueryHelper queryHelper = new VoicemailsQueryHelper(mContext);
-                queryHelper.insertIfUnique(voicemail);
+                VoicemailInserter.getInstance(mContext).insertIfUnique(voicemail);
                 break;
             case OmtpConstants.MAILBOX_UPDATE:
                 Intent serviceIntent = OmtpVvmSyncService.getSyncIntent(
@@ -137,6 +140,7 @@ public class OmtpMessageReceiver extends BroadcastReceiver {
                     VoicemailContract.Status.CONFIGURATION_STATE_OK,
                     VoicemailContract.Status.DATA_CHANNEL_STATE_OK,
                     VoicemailContract.Status.NOTIFICATION_CHANNEL_STATE_OK);
+            VoicemailStatusQueryHelper.getInstance(mContext).invalidate();
 
             // Save the IMAP credentials in preferences so they are persistent and can be retrieved.
             VisualVoicemailSettingsUtil.setVisualVoicemailCredentialsFromStatusMessage(
@@ -39,7 +39,7 @@ public class OmtpSmsParser {
         WrappedMessageData messageData = null;
         if (smsBody.startsWith(OmtpConstants.SYNC_SMS_PREFIX)) {
             messageData = new WrappedMessageData(OmtpConstants.SYNC_SMS_PREFIX,
-                    parseSmsBody(smsBody.substring(OmtpConstants.SYNC_SMS_PREFIX.length())));
+                    parseSmsBody(smsBody, OmtpConstants.SYNC_SMS_PREFIX.length()));
             // Check for a mandatory field.
             String triggerEvent = messageData.extractString(OmtpConstants.SYNC_TRIGGER_EVENT);
             if (triggerEvent == null) {
@@ -48,7 +48,7 @@ public class OmtpSmsParser {
             }
         } else if (smsBody.startsWith(OmtpConstants.STATUS_SMS_PREFIX)) {
             messageData = new WrappedMessageData(OmtpConstants.STATUS_SMS_PREFIX,
-                    parseSmsBody(smsBody.substring(OmtpConstants.STATUS_SMS_PREFIX.length())));
+                    parseSmsBody(smsBody, OmtpConstants.STATUS_SMS_PREFIX.length()));
         }
 
         return messageData;
@@ -61,20 +61,57 @@ public class OmtpSmsParser {
      * e.g. "//VVM:STATUS:st=R;rc=0;srv=1;dn=1;ipt=1;spt=0;u=eg@example.com;pw=1"
      * => "WrappedMessageData [mFields={st=R, ipt=1, srv=1, dn=1, u=eg@example.com, pw=1, rc=0}]"
      *
-     * @param message The sms string with the prefix removed.
+     * The body is scanned once, without regular expressions or intermediate substrings. As with
+     * splitting each entry on the key/value separator, trailing separators are ignored, and
+     * entries which then hold anything but one key and one value are skipped.
+     *
+     * @param message The sms string.
+     * @param start The index in the string at which the key/value pairs start, past the prefix.
      * @return A WrappedMessageData object containing the map.
      */
-    private static Map<String, String> parseSmsBody(String message) {
+    private static Map<String, String> parseSmsBody(String message, int start) {
         Map<String, String> keyValues = new ArrayMap<String, String>();
-        String[] entries = message.split(OmtpConstants.SMS_FIELD_SEPARATOR);
-        for (String entry : entries) {
-            String[] keyValue = entry.split(OmtpConstants.SMS_KEY_VALUE_SEPARATOR);
-            if (keyValue.length != 2) {
-                continue;
+        char fieldSeparator = OmtpConstants.SMS_FIELD_SEPARATOR.charAt(0);
+        char keyValueSeparator = OmtpConstants.SMS_KEY_VALUE_SEPARATOR.charAt(0);
+        int length = message.length();
+        int entryStart = start;
+        int separator = -1;
+        int separatorCount = 0;
+        for (int i = start; i <= length; i++) {
+            char c = i < length ? message.charAt(i) : fieldSeparator;
+            if (c == keyValueSeparator) {
+                if (separatorCount++ == 0) {
+                    separator = i;
+                }
+            } else if (c == fieldSeparator) {
+                int entryEnd = i;
+                while (entryEnd > entryStart
+                        && message.charAt(entryEnd - 1) == keyValueSeparator) {
+                    entryEnd--;
+                    separatorCount--;
+                }
+                if (separatorCount == 1) {
+                    keyValues.put(trim(message, entryStart, separator),
+                            trim(message, separator + 1, entryEnd));
+                }
+                entryStart = i + 1;
+                separatorCount = 0;
             }
-            keyValues.put(keyValue[0].trim(), keyValue[1].trim());
         }
 
         return keyValues;
     }
+
+    /**
+     * Returns the substring between the two indices without leading and trailing whitespace.
+     */
+    private static String trim(String s, int start, int end) {
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return s.substring(start, end);
+    }
 }
\ No newline at end of file
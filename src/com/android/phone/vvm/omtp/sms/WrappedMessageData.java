@@ -16,7 +16,6 @@
 package com.android.phone.vvm.omtp.sms;
 
 import android.text.TextUtils;
-import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.phone.vvm.omtp.OmtpConstants;
@@ -44,10 +43,12 @@ public class WrappedMessageData {
         return "WrappedMessageData [mFields=" + mFields + "]";
     }
 
+    /**
+     * @param keyValues The fields of the message, owned by this object from now on.
+     */
     WrappedMessageData(String prefix, Map<String, String> keyValues) {
         mPrefix = prefix;
-        mFields = new ArrayMap<String, String>();
-        mFields.putAll(keyValues);
+        mFields = keyValues;
     }
 
     /**
@@ -24,6 +24,7 @@ import android.telephony.TelephonyManager;
 
 import com.android.internal.telephony.Phone;
 import com.android.phone.PhoneUtils;
+import com.android.phone.SubscriptionDiff;
 import com.android.phone.vvm.omtp.VvmPhoneStateListener;
 
 import java.util.Collections;
@@ -86,20 +87,29 @@ public class OmtpVvmSourceManager {
      * inactive sources.
      */
     public void removeInactiveSources() {
+        int[] activeSubIds = SubscriptionDiff.getSortedSubIds(
+                mSubscriptionManager.getActiveSubscriptionInfoList());
+
         for (PhoneAccountHandle phoneAccount : mActiveVvmSources) {
-            if (!PhoneUtils.isPhoneAccountActive(mSubscriptionManager, phoneAccount)) {
+            if (!isPhoneAccountActive(activeSubIds, phoneAccount)) {
                 removeSource(phoneAccount);
             }
         }
 
         // Remove any orphaned phone state listeners as well.
         for (PhoneAccountHandle phoneAccount : mPhoneStateListenerMap.keySet()) {
-            if (!PhoneUtils.isPhoneAccountActive(mSubscriptionManager, phoneAccount)) {
+            if (!isPhoneAccountActive(activeSubIds, phoneAccount)) {
                 removePhoneStateListener(phoneAccount);
             }
         }
     }
 
+    private static boolean isPhoneAccountActive(int[] activeSubIds,
+            PhoneAccountHandle phoneAccount) {
+        return SubscriptionDiff.contains(activeSubIds,
+                PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount));
+    }
+
     public void removeSource(Phone phone) {
         removeSource(PhoneUtils.makePstnPhoneAccountHandle(phone));
     }
@@ -109,6 +119,7 @@ public class OmtpVvmSourceManager {
                 VoicemailContract.Status.CONFIGURATION_STATE_NOT_CONFIGURED,
                 VoicemailContract.Status.DATA_CHANNEL_STATE_NO_CONNECTION,
                 VoicemailContract.Status.NOTIFICATION_CHANNEL_STATE_NO_CONNECTION);
+        VoicemailStatusQueryHelper.getInstance(mContext).invalidate();
         removePhoneStateListener(phoneAccount);
         mActiveVvmSources.remove(phoneAccount);
         OmtpVvmSyncService.cancelAllRetries(mContext, phoneAccount);
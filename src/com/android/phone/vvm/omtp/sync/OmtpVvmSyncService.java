@@ -25,7 +25,7 @@ import android.net.Network;
 import android.net.ConnectivityManager.NetworkCallback;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
-import android.provider.VoicemailContract;
+import android.os.SystemClock;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import android.telephony.TelephonyManager;
@@ -35,8 +35,10 @@ import com.android.phone.PhoneUtils;
 import com.android.phone.settings.VisualVoicemailSettingsUtil;
 import com.android.phone.vvm.omtp.LocalLogHelper;
 import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VvmEventLog;
 import com.android.phone.vvm.omtp.imap.ImapHelper;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -185,7 +187,7 @@ public class OmtpVvmSyncService extends IntentService {
 
         int subId = PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount);
         OmtpVvmCarrierConfigHelper carrierConfigHelper =
-                new OmtpVvmCarrierConfigHelper(this, subId);
+                OmtpVvmCarrierConfigHelper.getInstance(this, subId);
 
         if (TelephonyManager.VVM_TYPE_CVVM.equals(carrierConfigHelper.getVvmType())) {
             doSync(null, null, phoneAccount, action);
@@ -200,6 +202,7 @@ public class OmtpVvmSyncService extends IntentService {
         PhoneAccountHandle mPhoneAccount;
         String mAction;
         NetworkRequest mNetworkRequest;
+        long mRequestTimeMillis;
 
         public OmtpVvmNetworkRequestCallback(PhoneAccountHandle phoneAccount,
                 String action) {
@@ -220,16 +223,21 @@ public class OmtpVvmSyncService extends IntentService {
 
         @Override
         public void onAvailable(final Network network) {
+            VvmEventLog.logTimed(VvmEventLog.EVENT_NETWORK_AVAILABLE, mPhoneAccount,
+                    mRequestTimeMillis, 0);
             doSync(network, this, mPhoneAccount, mAction);
         }
 
         @Override
         public void onLost(Network network) {
+            VvmEventLog.log(VvmEventLog.EVENT_NETWORK_LOST, mPhoneAccount);
             releaseNetwork(this);
         }
 
         @Override
         public void onUnavailable() {
+            VvmEventLog.logTimed(VvmEventLog.EVENT_NETWORK_UNAVAILABLE, mPhoneAccount,
+                    mRequestTimeMillis, 0);
             releaseNetwork(this);
         }
     }
@@ -294,6 +302,8 @@ public class OmtpVvmSyncService extends IntentService {
     }
 
     private void requestNetwork(OmtpVvmNetworkRequestCallback networkCallback) {
+        networkCallback.mRequestTimeMillis = SystemClock.elapsedRealtime();
+        VvmEventLog.log(VvmEventLog.EVENT_NETWORK_REQUESTED, networkCallback.mPhoneAccount);
         getConnectivityManager().requestNetwork(networkCallback.getNetworkRequest(),
                 networkCallback, NETWORK_REQUEST_TIMEOUT_MILLIS);
     }
@@ -322,6 +332,7 @@ public class OmtpVvmSyncService extends IntentService {
 
         Log.v(TAG, "Retrying "+ action + " in " + retryInterval + "ms");
         LocalLogHelper.log(TAG, "Retrying "+ action + " in " + retryInterval + "ms");
+        VvmEventLog.log(VvmEventLog.EVENT_RETRY_SCHEDULED, phoneAccount, retryInterval);
 
         AlarmManager alarmManager = (AlarmManager)
                 this.getSystemService(Context.ALARM_SERVICE);
@@ -369,6 +380,8 @@ public class OmtpVvmSyncService extends IntentService {
         }
 
         Map<String, Voicemail> remoteMap = buildMap(serverVoicemails);
+        List<Voicemail> toDelete = new ArrayList<Voicemail>();
+        List<Voicemail> toMarkRead = new ArrayList<Voicemail>();
 
         // Go through all the local voicemails and check if they are on the server.
         // They may be read or deleted on the server but not locally. Perform the
@@ -379,18 +392,19 @@ public class OmtpVvmSyncService extends IntentService {
             Voicemail localVoicemail = localVoicemails.get(i);
             Voicemail remoteVoicemail = remoteMap.remove(localVoicemail.getSourceData());
             if (remoteVoicemail == null) {
-                mQueryHelper.deleteFromDatabase(localVoicemail);
+                toDelete.add(localVoicemail);
             } else {
                 if (remoteVoicemail.isRead() != localVoicemail.isRead()) {
-                    mQueryHelper.markReadInDatabase(localVoicemail);
+                    toMarkRead.add(localVoicemail);
                 }
             }
         }
 
-        // The leftover messages are messages that exist on the server but not locally.
-        for (Voicemail remoteVoicemail : remoteMap.values()) {
-            VoicemailContract.Voicemails.insert(this, remoteVoicemail);
-        }
+        // Apply the whole diff at once, rather than one provider call per message. The leftover
+        // messages are messages that exist on the server but not locally.
+        mQueryHelper.deleteFromDatabase(toDelete);
+        mQueryHelper.markReadInDatabase(toMarkRead);
+        mQueryHelper.insertIntoDatabase(new ArrayList<Voicemail>(remoteMap.values()));
 
         return true;
     }
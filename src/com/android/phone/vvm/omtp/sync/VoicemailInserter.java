@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.vvm.omtp.sync;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.provider.VoicemailContract.Voicemails;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.Voicemail;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Inserts the voicemails announced by SYNC SMS messages into the voicemail provider, skipping the
+ * ones which are already there.
+ *
+ * All the work happens on a background thread, so that the SMS receiver never touches the
+ * provider. The source data of the voicemails known for each phone account is loaded once into
+ * memory and dropped whenever the provider reports a change. New voicemails are checked against
+ * it and inserted in small batches, so a burst of notifications costs a query and an insert per
+ * batch rather than per voicemail.
+ */
+public class VoicemailInserter {
+    private static final String TAG = "VoicemailInserter";
+
+    private static final int MSG_INSERT = 1;
+    private static final int MSG_FLUSH = 2;
+
+    /** How long to wait for more voicemails before inserting the pending ones. */
+    private static final long FLUSH_DELAY_MILLIS = 500;
+    /** Pending voicemails are inserted right away once there are this many. */
+    private static final int MAX_PENDING_VOICEMAILS = 20;
+
+    private static VoicemailInserter sInstance;
+
+    private final VoicemailsQueryHelper mQueryHelper;
+    private final Handler mHandler;
+
+    // The fields below are only accessed on mHandler's thread.
+
+    /** The source data of the voicemails known to the provider, by phone account. */
+    private final ArrayMap<PhoneAccountHandle, Set<String>> mKnownSourceData = new ArrayMap<>();
+    private final List<Voicemail> mPendingVoicemails = new ArrayList<>();
+
+    public static synchronized VoicemailInserter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new VoicemailInserter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private VoicemailInserter(Context context) {
+        mQueryHelper = new VoicemailsQueryHelper(context);
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_INSERT:
+                        onInsert((Voicemail) msg.obj);
+                        break;
+                    case MSG_FLUSH:
+                        flush();
+                        break;
+                }
+            }
+        };
+
+        context.getContentResolver().registerContentObserver(
+                Voicemails.buildSourceUri(context.getPackageName()), true,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mKnownSourceData.clear();
+                    }
+                });
+    }
+
+    /**
+     * Inserts the voicemail, unless a voicemail with the same phone account and source data
+     * already exists. Returns immediately; the insert happens in the background.
+     */
+    public void insertIfUnique(Voicemail voicemail) {
+        mHandler.obtainMessage(MSG_INSERT, voicemail).sendToTarget();
+    }
+
+    private void onInsert(Voicemail voicemail) {
+        if (!isUnique(voicemail)) {
+            Log.w(TAG, "Voicemail already exists.");
+            return;
+        }
+        mPendingVoicemails.add(voicemail);
+        if (mPendingVoicemails.size() >= MAX_PENDING_VOICEMAILS) {
+            flush();
+        } else if (!mHandler.hasMessages(MSG_FLUSH)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Voicemail is unique if the tuple of (phone account component name, phone account id, source
+     * data) is unique. If the phone account is missing, we also consider this unique since it's
+     * simply an "unknown" account. A unique voicemail is added to the known source data, so that
+     * duplicates still waiting to be inserted are caught too.
+     */
+    private boolean isUnique(Voicemail voicemail) {
+        PhoneAccountHandle phoneAccount = voicemail.getPhoneAccount();
+        String sourceData = voicemail.getSourceData();
+        if (phoneAccount == null || phoneAccount.getId() == null || sourceData == null) {
+            return true;
+        }
+
+        Set<String> knownSourceData = mKnownSourceData.get(phoneAccount);
+        if (knownSourceData == null) {
+            knownSourceData = mQueryHelper.getSourceData(phoneAccount);
+            if (knownSourceData == null) {
+                // The query failed; don't hold back the voicemail.
+                return true;
+            }
+            for (int i = 0; i < mPendingVoicemails.size(); i++) {
+                Voicemail pending = mPendingVoicemails.get(i);
+                if (phoneAccount.equals(pending.getPhoneAccount())) {
+                    knownSourceData.add(pending.getSourceData());
+                }
+            }
+            mKnownSourceData.put(phoneAccount, knownSourceData);
+        }
+        return knownSourceData.add(sourceData);
+    }
+
+    private void flush() {
+        mHandler.removeMessages(MSG_FLUSH);
+        if (mPendingVoicemails.isEmpty()) {
+            return;
+        }
+        mQueryHelper.insertIntoDatabase(mPendingVoicemails);
+        mPendingVoicemails.clear();
+    }
+}
@@ -17,37 +17,78 @@ package com.android.phone.vvm.omtp.sync;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
 
 /**
  * Construct queries to interact with the voicemail status table.
+ *
+ * The status rows of our voicemail sources are read with a single query and cached until the
+ * provider reports a change to them, so that frequent callers such as service state and MWI
+ * updates don't query the provider every time. Change notifications arrive asynchronously, so
+ * code which writes a status must call {@link #invalidate} right after it.
  */
 public class VoicemailStatusQueryHelper {
 
     final static String[] PROJECTION = new String[] {
-            Status._ID,                        // 0
-            Status.CONFIGURATION_STATE,        // 1
-            Status.NOTIFICATION_CHANNEL_STATE, // 2
-            Status.SOURCE_PACKAGE              // 3
+            Status._ID,                          // 0
+            Status.CONFIGURATION_STATE,          // 1
+            Status.NOTIFICATION_CHANNEL_STATE,   // 2
+            Status.SOURCE_PACKAGE,               // 3
+            Status.PHONE_ACCOUNT_COMPONENT_NAME, // 4
+            Status.PHONE_ACCOUNT_ID,             // 5
    };
 
     public static final int _ID = 0;
     public static final int CONFIGURATION_STATE = 1;
     public static final int NOTIFICATION_CHANNEL_STATE = 2;
     public static final int SOURCE_PACKAGE = 3;
+    public static final int PHONE_ACCOUNT_COMPONENT_NAME = 4;
+    public static final int PHONE_ACCOUNT_ID = 5;
+
+    private static VoicemailStatusQueryHelper sInstance;
 
     private Context mContext;
     private ContentResolver mContentResolver;
     private Uri mSourceUri;
 
-    public VoicemailStatusQueryHelper(Context context) {
+    /**
+     * The status rows of our voicemail sources, keyed by {@link #getKey}. Each value holds the
+     * row's fields at their column index. Null until loaded. Guarded by this.
+     */
+    private ArrayMap<String, int[]> mStatuses;
+
+    private final ContentObserver mStatusObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    public static synchronized VoicemailStatusQueryHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new VoicemailStatusQueryHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private VoicemailStatusQueryHelper(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
         mSourceUri = VoicemailContract.Status.buildSourceUri(mContext.getPackageName());
+        mContentResolver.registerContentObserver(mSourceUri, true, mStatusObserver);
+    }
+
+    /**
+     * Drops the cached statuses, so that the next check reads them from the provider again.
+     */
+    public synchronized void invalidate() {
+        mStatuses = null;
     }
 
     /**
@@ -83,31 +124,56 @@ public class VoicemailStatusQueryHelper {
      * otherwise.
      */
     private boolean isFieldEqualTo(PhoneAccountHandle phoneAccount, int columnIndex, int value) {
-        Cursor cursor = null;
-        if (phoneAccount != null) {
-            String phoneAccountComponentName = phoneAccount.getComponentName().flattenToString();
-            String phoneAccountId = phoneAccount.getId();
-            if (phoneAccountComponentName == null || phoneAccountId == null) {
-                return false;
-            }
-            try {
-                String whereClause =
-                        Status.PHONE_ACCOUNT_COMPONENT_NAME + "=? AND " +
-                        Status.PHONE_ACCOUNT_ID + "=? AND " + Status.SOURCE_PACKAGE + "=?";
-                String[] whereArgs = { phoneAccountComponentName, phoneAccountId,
-                        mContext.getPackageName()};
-                cursor = mContentResolver.query(
-                        mSourceUri, PROJECTION, whereClause, whereArgs, null);
-                if (cursor != null && cursor.moveToFirst()) {
-                    return cursor.getInt(columnIndex) == value;
-                }
+        if (phoneAccount == null) {
+            return false;
+        }
+        String phoneAccountComponentName = phoneAccount.getComponentName().flattenToString();
+        String phoneAccountId = phoneAccount.getId();
+        if (phoneAccountComponentName == null || phoneAccountId == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mStatuses == null) {
+                mStatuses = loadStatuses();
             }
-            finally {
-                if (cursor != null) {
-                    cursor.close();
+            int[] status = mStatuses.get(getKey(phoneAccountComponentName, phoneAccountId));
+            return status != null && status[columnIndex] == value;
+        }
+    }
+
+    /**
+     * Reads the status rows of all our voicemail sources.
+     */
+    private ArrayMap<String, int[]> loadStatuses() {
+        ArrayMap<String, int[]> statuses = new ArrayMap<String, int[]>();
+        String whereClause = Status.SOURCE_PACKAGE + "=?";
+        String[] whereArgs = { mContext.getPackageName() };
+        Cursor cursor = mContentResolver.query(mSourceUri, PROJECTION, whereClause, whereArgs,
+                null);
+        if (cursor == null) {
+            return statuses;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String key = getKey(cursor.getString(PHONE_ACCOUNT_COMPONENT_NAME),
+                        cursor.getString(PHONE_ACCOUNT_ID));
+                if (statuses.containsKey(key)) {
+                    // Keep the first row, as a query for the phone account would.
+                    continue;
                 }
+                int[] status = new int[PROJECTION.length];
+                status[CONFIGURATION_STATE] = cursor.getInt(CONFIGURATION_STATE);
+                status[NOTIFICATION_CHANNEL_STATE] = cursor.getInt(NOTIFICATION_CHANNEL_STATE);
+                statuses.put(key, status);
             }
+        } finally {
+            cursor.close();
         }
-        return false;
+        return statuses;
+    }
+
+    private static String getKey(String phoneAccountComponentName, String phoneAccountId) {
+        return phoneAccountComponentName + ";" + phoneAccountId;
     }
 }
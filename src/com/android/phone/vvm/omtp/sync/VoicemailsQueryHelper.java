@@ -16,7 +16,6 @@
 package com.android.phone.vvm.omtp.sync;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -25,10 +24,11 @@ import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
-import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Construct queries to interact with the voicemails table.
@@ -52,6 +52,9 @@ public class VoicemailsQueryHelper {
                 + Voicemails.DELETED + "!=1 AND " + Voicemails.IS_READ + "=1";
     final static String DELETED_SELECTION = Voicemails.DELETED + "=1";
 
+    /** Maximum number of rows changed by a single provider call. */
+    private static final int MAX_BATCH_SIZE = 100;
+
     private Context mContext;
     private ContentResolver mContentResolver;
     private Uri mSourceUri;
@@ -124,29 +127,12 @@ public class VoicemailsQueryHelper {
      * @return The number of voicemails deleted
      */
     public int deleteFromDatabase(List<Voicemail> voicemails) {
-        int count = voicemails.size();
-        if (count == 0) {
-            return 0;
-        }
-
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < count; i++) {
-            if (i > 0) {
-                sb.append(",");
-            }
-            sb.append(voicemails.get(i).getId());
+        int deleted = 0;
+        for (int start = 0; start < voicemails.size(); start += MAX_BATCH_SIZE) {
+            deleted += mContentResolver.delete(Voicemails.CONTENT_URI,
+                    buildIdSelection(voicemails, start), null);
         }
-
-        String selectionStatement = String.format(Voicemails._ID + " IN (%s)", sb.toString());
-        return mContentResolver.delete(Voicemails.CONTENT_URI, selectionStatement, null);
-    }
-
-    /**
-     * Utility method to delete a single voicemail.
-     */
-    public void deleteFromDatabase(Voicemail voicemail) {
-        mContentResolver.delete(Voicemails.CONTENT_URI, Voicemails._ID + "=?",
-                new String[] { Long.toString(voicemail.getId()) });
+        return deleted;
     }
 
     /**
@@ -159,71 +145,101 @@ public class VoicemailsQueryHelper {
      * @return The number of voicemails updated
      */
     public int markReadInDatabase(List<Voicemail> voicemails) {
-        int count = voicemails.size();
-        for (int i = 0; i < count; i++) {
-            markReadInDatabase(voicemails.get(i));
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.IS_READ, "1");
+        int updated = 0;
+        for (int start = 0; start < voicemails.size(); start += MAX_BATCH_SIZE) {
+            updated += mContentResolver.update(mSourceUri, contentValues,
+                    buildIdSelection(voicemails, start), null);
         }
-        return count;
+        return updated;
     }
 
     /**
-     * Utility method to mark single message as read.
+     * Inserts a list of voicemails into the voicemail content provider, at most
+     * {@link #MAX_BATCH_SIZE} voicemails per provider call.
+     *
+     * @param voicemails The list of voicemails to insert
+     * @return The number of voicemails inserted
      */
-    public void markReadInDatabase(Voicemail voicemail) {
-        Uri uri = ContentUris.withAppendedId(mSourceUri, voicemail.getId());
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Voicemails.IS_READ, "1");
-        mContentResolver.update(uri, contentValues, null, null);
+    public int insertIntoDatabase(List<Voicemail> voicemails) {
+        int inserted = 0;
+        for (int start = 0; start < voicemails.size(); start += MAX_BATCH_SIZE) {
+            int end = Math.min(start + MAX_BATCH_SIZE, voicemails.size());
+            ContentValues[] values = new ContentValues[end - start];
+            for (int i = start; i < end; i++) {
+                values[i - start] = getContentValues(voicemails.get(i));
+            }
+            inserted += mContentResolver.bulkInsert(mSourceUri, values);
+        }
+        return inserted;
     }
 
     /**
-     * Check if a particular voicemail has already been inserted. If not, insert the new voicemail.
-     * @param voicemail The voicemail to insert.
+     * Builds a selection matching the ids of at most {@link #MAX_BATCH_SIZE} voicemails, starting
+     * at the given index.
      */
-    public void insertIfUnique(Voicemail voicemail) {
-        if (isVoicemailUnique(voicemail)) {
-            VoicemailContract.Voicemails.insert(mContext, voicemail);
-        } else {
-            Log.w(TAG, "Voicemail already exists.");
+    private static String buildIdSelection(List<Voicemail> voicemails, int start) {
+        int end = Math.min(start + MAX_BATCH_SIZE, voicemails.size());
+        StringBuilder sb = new StringBuilder(Voicemails._ID).append(" IN (");
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                sb.append(",");
+            }
+            sb.append(voicemails.get(i).getId());
         }
+        return sb.append(")").toString();
     }
 
     /**
-     * Voicemail is unique if the tuple of (phone account component name, phone account id, source
-     * data) is unique. If the phone account is missing, we also consider this unique since it's
-     * simply an "unknown" account.
-     * @param voicemail The voicemail to check if it is unique.
-     * @return {@code true} if the voicemail is unique, {@code false} otherwise.
+     * Mirrors the values written by {@link VoicemailContract.Voicemails#insert}.
      */
-    private boolean isVoicemailUnique(Voicemail voicemail) {
-        Cursor cursor = null;
+    private ContentValues getContentValues(Voicemail voicemail) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.DATE, String.valueOf(voicemail.getTimestampMillis()));
+        contentValues.put(Voicemails.NUMBER, voicemail.getNumber());
+        contentValues.put(Voicemails.DURATION, String.valueOf(voicemail.getDuration()));
+        String sourcePackage = voicemail.getSourcePackage();
+        contentValues.put(Voicemails.SOURCE_PACKAGE,
+                sourcePackage != null ? sourcePackage : mContext.getPackageName());
+        contentValues.put(Voicemails.SOURCE_DATA, voicemail.getSourceData());
+        contentValues.put(Voicemails.IS_READ, voicemail.isRead() ? 1 : 0);
         PhoneAccountHandle phoneAccount = voicemail.getPhoneAccount();
         if (phoneAccount != null) {
-            String phoneAccountComponentName = phoneAccount.getComponentName().flattenToString();
-            String phoneAccountId = phoneAccount.getId();
-            String sourceData = voicemail.getSourceData();
-            if (phoneAccountComponentName == null || phoneAccountId == null || sourceData == null) {
-                return true;
-            }
-            try {
-                String whereClause =
-                        Voicemails.PHONE_ACCOUNT_COMPONENT_NAME + "=? AND " +
-                        Voicemails.PHONE_ACCOUNT_ID + "=? AND " + Voicemails.SOURCE_DATA + "=?";
-                String[] whereArgs = { phoneAccountComponentName, phoneAccountId, sourceData };
-                cursor = mContentResolver.query(
-                        mSourceUri, PROJECTION, whereClause, whereArgs, null);
-                if (cursor.getCount() == 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-            finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            contentValues.put(Voicemails.PHONE_ACCOUNT_COMPONENT_NAME,
+                    phoneAccount.getComponentName().flattenToString());
+            contentValues.put(Voicemails.PHONE_ACCOUNT_ID, phoneAccount.getId());
+        }
+        if (voicemail.getTranscription() != null) {
+            contentValues.put(Voicemails.TRANSCRIPTION, voicemail.getTranscription());
+        }
+        return contentValues;
+    }
+
+    /**
+     * Get the source data of all the voicemails stored for a phone account.
+     *
+     * @return The source data, or {@code null} if the query failed.
+     */
+    public Set<String> getSourceData(PhoneAccountHandle phoneAccount) {
+        String whereClause =
+                Voicemails.PHONE_ACCOUNT_COMPONENT_NAME + "=? AND " +
+                Voicemails.PHONE_ACCOUNT_ID + "=?";
+        String[] whereArgs = {
+                phoneAccount.getComponentName().flattenToString(), phoneAccount.getId() };
+        Cursor cursor = mContentResolver.query(mSourceUri, PROJECTION, whereClause, whereArgs,
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            Set<String> sourceData = new HashSet<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                sourceData.add(cursor.getString(SOURCE_DATA));
             }
+            return sourceData;
+        } finally {
+            cursor.close();
         }
-        return true;
     }
 }
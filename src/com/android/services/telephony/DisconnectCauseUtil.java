@@ -26,13 +26,62 @@ import com.android.phone.ImsUtil;
 
 import com.android.internal.telephony.gsm.SuppServiceNotification;
 
+import java.util.Locale;
+
 public class DisconnectCauseUtil {
 
-    public static int mNotificationCode = 0xFF;
-    public static int mNotificationType = 0xFF;
+    /** Value used when no supplementary service notification is associated with a disconnect. */
+    public static final int NOTIFICATION_NONE = 0xFF;
+
     private static final int NOTIFICATION_TYPE_MT = 1;
     private static final int NOTIFICATION_TYPE_MO = 0;
 
+    /**
+     * Number of telephony disconnect codes held in the precomputed tables. Codes outside of this
+     * range are still converted, just without caching.
+     */
+    private static final int TABLE_SIZE = 128;
+
+    /** The lookup table for the current locale; replaced wholesale when the locale changes. */
+    private static volatile CauseTable sCauseTable;
+
+    /**
+     * Immutable result of converting one telephony disconnect code. When no free-form reason is
+     * supplied, {@link #disconnectCause} is handed out directly so that tearing down many
+     * connections at once does not allocate.
+     */
+    private static final class CauseEntry {
+        final int code;
+        final CharSequence label;
+        final CharSequence description;
+        final int tone;
+        final DisconnectCause disconnectCause;
+
+        CauseEntry(int telephonyDisconnectCause, int code, CharSequence label,
+                CharSequence description, int tone) {
+            this.code = code;
+            this.label = label;
+            this.description = description;
+            this.tone = tone;
+            this.disconnectCause = new DisconnectCause(code, label, description,
+                    toTelecomDisconnectReason(telephonyDisconnectCause, null), tone);
+        }
+    }
+
+    /**
+     * Per-locale table of {@link CauseEntry} objects. Entries are filled in lazily; since they are
+     * immutable, racing writers simply store equivalent values.
+     */
+    private static final class CauseTable {
+        final Locale locale;
+        final CauseEntry[] entries = new CauseEntry[TABLE_SIZE];
+        // Entries for causes whose description is altered by a supplementary service notification.
+        final CauseEntry[] ssEntries = new CauseEntry[TABLE_SIZE];
+
+        CauseTable(Locale locale) {
+            this.locale = locale;
+        }
+    }
 
    /**
     * Converts from a disconnect code in {@link android.telephony.DisconnectCause} into a more generic
@@ -46,11 +95,36 @@ public class DisconnectCauseUtil {
         return toTelecomDisconnectCause(telephonyDisconnectCause, null /* reason */);
     }
 
+   /**
+    * Converts from a disconnect code in {@link android.telephony.DisconnectCause} into a more generic
+    * {@link android.telecom.DisconnectCause}.object, taking into account the supplementary service
+    * notification received for the call, if any.
+    *
+    * @param telephonyDisconnectCause The code for the reason for the disconnect.
+    * @param reason Description of the reason for the disconnect, not intended for the user to see..
+    * @param type The {@link SuppServiceNotification} type, or {@link #NOTIFICATION_NONE}.
+    * @param code The {@link SuppServiceNotification} code, or {@link #NOTIFICATION_NONE}.
+    */
     public static DisconnectCause toTelecomDisconnectCause(int telephonyDisconnectCause,
             String reason, int type, int code) {
-        mNotificationCode = code;
-        mNotificationType = type;
-        return toTelecomDisconnectCause(telephonyDisconnectCause, reason);
+        Context context = PhoneGlobals.getInstance();
+        boolean ssMatch = isSuppServiceDescription(telephonyDisconnectCause, type, code);
+        if (context == null || !isCacheable(telephonyDisconnectCause)) {
+            return new DisconnectCause(
+                    toTelecomDisconnectCauseCode(telephonyDisconnectCause),
+                    toTelecomDisconnectCauseLabel(context, telephonyDisconnectCause),
+                    toTelecomDisconnectCauseDescription(context, telephonyDisconnectCause,
+                            ssMatch),
+                    toTelecomDisconnectReason(telephonyDisconnectCause, reason),
+                    toTelecomDisconnectCauseTone(telephonyDisconnectCause));
+        }
+
+        CauseEntry entry = getCauseEntry(context, telephonyDisconnectCause, ssMatch);
+        if (reason == null) {
+            return entry.disconnectCause;
+        }
+        return new DisconnectCause(entry.code, entry.label, entry.description,
+                toTelecomDisconnectReason(telephonyDisconnectCause, reason), entry.tone);
     }
 
    /**
@@ -64,13 +138,78 @@ public class DisconnectCauseUtil {
     */
     public static DisconnectCause toTelecomDisconnectCause(
             int telephonyDisconnectCause, String reason) {
-        Context context = PhoneGlobals.getInstance();
-        return new DisconnectCause(
-                toTelecomDisconnectCauseCode(telephonyDisconnectCause),
-                toTelecomDisconnectCauseLabel(context, telephonyDisconnectCause),
-                toTelecomDisconnectCauseDescription(context, telephonyDisconnectCause),
-                toTelecomDisconnectReason(telephonyDisconnectCause, reason),
-                toTelecomDisconnectCauseTone(telephonyDisconnectCause));
+        return toTelecomDisconnectCause(telephonyDisconnectCause, reason, NOTIFICATION_NONE,
+                NOTIFICATION_NONE);
+    }
+
+    /**
+     * Returns the precomputed entry for the disconnect cause, building the table for the current
+     * locale and the entry itself if needed.
+     */
+    private static CauseEntry getCauseEntry(
+            Context context, int telephonyDisconnectCause, boolean ssMatch) {
+        Locale locale = context.getResources().getConfiguration().locale;
+        CauseTable table = sCauseTable;
+        if (table == null || !table.locale.equals(locale)) {
+            table = new CauseTable(locale);
+            sCauseTable = table;
+        }
+
+        CauseEntry[] entries = ssMatch ? table.ssEntries : table.entries;
+        CauseEntry entry = entries[telephonyDisconnectCause];
+        if (entry == null) {
+            entry = new CauseEntry(telephonyDisconnectCause,
+                    toTelecomDisconnectCauseCode(telephonyDisconnectCause),
+                    toTelecomDisconnectCauseLabel(context, telephonyDisconnectCause),
+                    toTelecomDisconnectCauseDescription(context, telephonyDisconnectCause,
+                            ssMatch),
+                    toTelecomDisconnectCauseTone(telephonyDisconnectCause));
+            entries[telephonyDisconnectCause] = entry;
+        }
+        return entry;
+    }
+
+    /**
+     * Whether the conversion of the disconnect cause depends only on the locale, and can therefore
+     * be held in the lookup table.
+     */
+    private static boolean isCacheable(int telephonyDisconnectCause) {
+        if (telephonyDisconnectCause < 0 || telephonyDisconnectCause >= TABLE_SIZE) {
+            return false;
+        }
+        switch (telephonyDisconnectCause) {
+            // The descriptions for these depend on the current WFC settings.
+            case android.telephony.DisconnectCause.POWER_OFF:
+            case android.telephony.DisconnectCause.OUT_OF_SERVICE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Whether the supplementary service notification received for the call selects an alternate
+     * description for the disconnect cause.
+     */
+    private static boolean isSuppServiceDescription(
+            int telephonyDisconnectCause, int type, int code) {
+        switch (telephonyDisconnectCause) {
+            case android.telephony.DisconnectCause.INCOMING_MISSED:
+                // If the network sends SVC Notification then this dialog will be displayed
+                // in case of B when the incoming call at B is not answered and gets forwarded
+                // to C
+                return type == NOTIFICATION_TYPE_MT
+                        && code == SuppServiceNotification.MT_CODE_ADDITIONAL_CALL_FORWARDED;
+            case android.telephony.DisconnectCause.CALL_BARRED:
+                // When call is disconnected with this code then it can either be barring from
+                // MO side or MT side.
+                // In MT case, if network sends SVC Notification then this dialog will be
+                // displayed when A is calling B & incoming is barred on B.
+                return type == NOTIFICATION_TYPE_MO
+                        && code == SuppServiceNotification.MO_CODE_INCOMING_CALLS_BARRED;
+            default:
+                return false;
+        }
     }
 
     /**
@@ -245,7 +384,7 @@ public class DisconnectCauseUtil {
      * Returns a description of the disconnect cause to be shown to the user.
      */
     private static CharSequence toTelecomDisconnectCauseDescription(
-            Context context, int telephonyDisconnectCause) {
+            Context context, int telephonyDisconnectCause, boolean ssMatch) {
         if (context == null ) {
             return "";
         }
@@ -253,25 +392,14 @@ public class DisconnectCauseUtil {
         Integer resourceId = null;
         switch (telephonyDisconnectCause) {
             case android.telephony.DisconnectCause.INCOMING_MISSED: {
-                // If the network sends SVC Notification then this dialog will be displayed
-                // in case of B when the incoming call at B is not answered and gets forwarded
-                // to C
-                if (mNotificationType == NOTIFICATION_TYPE_MT &&
-                        mNotificationCode ==
-                        SuppServiceNotification.MT_CODE_ADDITIONAL_CALL_FORWARDED) {
+                if (ssMatch) {
                     resourceId = R.string.callUnanswered_forwarded;
                 }
                 break;
             }
 
             case android.telephony.DisconnectCause.CALL_BARRED:{
-                // When call is disconnected with this code then it can either be barring from
-                // MO side or MT side.
-                // In MT case, if network sends SVC Notification then this dialog will be
-                // displayed when A is calling B & incoming is barred on B.
-                if (mNotificationType == NOTIFICATION_TYPE_MO &&
-                        mNotificationCode ==
-                        SuppServiceNotification.MO_CODE_INCOMING_CALLS_BARRED) {
+                if (ssMatch) {
                     resourceId = R.string.callFailed_incoming_cb_enabled;
                 } else {
                     resourceId = R.string.callFailed_cb_enabled;
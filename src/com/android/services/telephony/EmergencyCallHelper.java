@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.telephony.ServiceState;
@@ -36,6 +37,9 @@ import com.android.internal.telephony.PhoneConstants;
  * class handles the case of the user trying to dial an emergency number while the radio is off
  * (i.e. the device is in airplane mode), by forcibly turning the radio back on, waiting for it to
  * come up, and then retrying the emergency call.
+ *
+ * On multi-SIM devices the radios of all candidate phones can be brought up in parallel (see
+ * {@link #startParallelTurnOnRadioSequence}); the first phone to become ready to call wins.
  */
 public class EmergencyCallHelper {
 
@@ -46,6 +50,18 @@ public class EmergencyCallHelper {
         void onComplete(boolean isRadioReady);
     }
 
+    /**
+     * Receives the result of the EmergencyCallHelper's attempt to turn on the radios of several
+     * phones at once.
+     */
+    interface ParallelCallback {
+        /**
+         * @param readyPhone The first phone which became ready to place the emergency call, or
+         *         {@code null} if none of the radios came up.
+         */
+        void onComplete(Phone readyPhone);
+    }
+
     // Number of times to retry the call, and time between retry attempts.
     public static final int MAX_NUM_RETRIES = 5;
     public static final long TIME_BETWEEN_RETRIES_MILLIS = 5000;  // msec
@@ -63,15 +79,15 @@ public class EmergencyCallHelper {
             switch (msg.what) {
                 case MSG_START_SEQUENCE:
                     SomeArgs args = (SomeArgs) msg.obj;
-                    Phone phone = (Phone) args.arg1;
-                    EmergencyCallHelper.Callback callback =
-                            (EmergencyCallHelper.Callback) args.arg2;
+                    Phone[] phones = (Phone[]) args.arg1;
+                    Object callback = args.arg2;
                     args.recycle();
 
-                    startSequenceInternal(phone, callback);
+                    startSequenceInternal(phones, callback);
                     break;
                 case MSG_SERVICE_STATE_CHANGED:
-                    onServiceStateChanged((ServiceState) ((AsyncResult) msg.obj).result);
+                    AsyncResult ar = (AsyncResult) msg.obj;
+                    onServiceStateChanged((Phone) ar.userObj, (ServiceState) ar.result);
                     break;
                 case MSG_RETRY_TIMEOUT:
                     onRetryTimeout();
@@ -85,9 +101,15 @@ public class EmergencyCallHelper {
 
 
     private Callback mCallback;  // The callback to notify upon completion.
-    private Phone mPhone;  // The phone that will attempt to place the call.
+    private ParallelCallback mParallelCallback;  // Set instead of mCallback in parallel mode.
+    private Phone[] mPhones;  // The phones that may attempt to place the call.
     private int mNumRetriesSoFar;
 
+    // Timestamps (elapsed realtime) of the phases of the current sequence, for diagnostics.
+    private long mStartTimeMillis;
+    private long mPowerOnTimeMillis;
+    private long mRadioOnTimeMillis;
+
     public EmergencyCallHelper(Context context) {
         Log.d(this, "EmergencyCallHelper constructor.");
         mContext = context;
@@ -112,7 +134,21 @@ public class EmergencyCallHelper {
         Log.d(this, "startTurnOnRadioSequence");
 
         SomeArgs args = SomeArgs.obtain();
-        args.arg1 = phone;
+        args.arg1 = new Phone[] { phone };
+        args.arg2 = callback;
+        mHandler.obtainMessage(MSG_START_SEQUENCE, args).sendToTarget();
+    }
+
+    /**
+     * Parallel variant of {@link #startTurnOnRadioSequence}: powers on the radios of all the given
+     * phones and watches their service state at the same time. The callback is notified with
+     * whichever phone first reaches a state in which the emergency call can be placed.
+     */
+    public void startParallelTurnOnRadioSequence(Phone[] phones, ParallelCallback callback) {
+        Log.d(this, "startParallelTurnOnRadioSequence, phones: %d", phones.length);
+
+        SomeArgs args = SomeArgs.obtain();
+        args.arg1 = phones.clone();
         args.arg2 = callback;
         mHandler.obtainMessage(MSG_START_SEQUENCE, args).sendToTarget();
     }
@@ -121,7 +157,7 @@ public class EmergencyCallHelper {
      * Actual implementation of startTurnOnRadioSequence(), guaranteed to run on the handler thread.
      * @see #startTurnOnRadioSequence
      */
-    private void startSequenceInternal(Phone phone, Callback callback) {
+    private void startSequenceInternal(Phone[] phones, Object callback) {
         Log.d(this, "startSequenceInternal()");
 
         // First of all, clean up any state left over from a prior emergency call sequence. This
@@ -129,9 +165,13 @@ public class EmergencyCallHelper {
         // we're already in the middle of the sequence.
         cleanup();
 
-        mPhone = phone;
-        mCallback = callback;
-
+        mPhones = phones;
+        if (callback instanceof ParallelCallback) {
+            mParallelCallback = (ParallelCallback) callback;
+        } else {
+            mCallback = (Callback) callback;
+        }
+        mStartTimeMillis = SystemClock.elapsedRealtime();
 
         // No need to check the current service state here, since the only reason to invoke this
         // method in the first place is if the radio is powered-off. So just go ahead and turn the
@@ -150,8 +190,11 @@ public class EmergencyCallHelper {
      * Handles the SERVICE_STATE_CHANGED event. Normally this event tells us that the radio has
      * finally come up. In that case, it's now safe to actually place the emergency call.
      */
-    private void onServiceStateChanged(ServiceState state) {
-        Log.d(this, "onServiceStateChanged(), new state = %s.", state);
+    private void onServiceStateChanged(Phone phone, ServiceState state) {
+        Log.d(this, "onServiceStateChanged(), phone = %s, new state = %s.", phone, state);
+        if (mPhones == null || phone == null) {
+            return;
+        }
 
         // Possible service states:
         // - STATE_IN_SERVICE        // Normal operation
@@ -160,11 +203,15 @@ public class EmergencyCallHelper {
         // - STATE_EMERGENCY_ONLY    // Phone is locked; only emergency numbers are allowed
         // - STATE_POWER_OFF         // Radio is explicitly powered off (airplane mode)
 
-        if (isOkToCall(state.getState(), mPhone.getState())) {
+        if (mRadioOnTimeMillis == 0 && state.getState() != ServiceState.STATE_POWER_OFF) {
+            mRadioOnTimeMillis = SystemClock.elapsedRealtime();
+        }
+
+        if (isOkToCall(phone, state.getState(), phone.getState())) {
             // Woo hoo!  It's OK to actually place the call.
             Log.d(this, "onServiceStateChanged: ok to call!");
 
-            onComplete(true);
+            onComplete(phone);
             cleanup();
         } else {
             // The service state changed, but we're still not ready to call yet. (This probably was
@@ -178,10 +225,10 @@ public class EmergencyCallHelper {
         }
     }
 
-    private boolean isOkToCall(int serviceState, PhoneConstants.State phoneState) {
+    private boolean isOkToCall(Phone phone, int serviceState, PhoneConstants.State phoneState) {
         // Once we reach either STATE_IN_SERVICE or STATE_EMERGENCY_ONLY, it's finally OK to place
         // the emergency call.
-        Call.State callState = mPhone.getForegroundCall().getState();
+        Call.State callState = phone.getForegroundCall().getState();
         return ((phoneState == PhoneConstants.State.OFFHOOK
                 && callState != Call.State.DIALING)
                 || (serviceState == ServiceState.STATE_IN_SERVICE)
@@ -196,10 +243,9 @@ public class EmergencyCallHelper {
      * Handles the retry timer expiring.
      */
     private void onRetryTimeout() {
-        PhoneConstants.State phoneState = mPhone.getState();
-        int serviceState = mPhone.getServiceState().getState();
-        Log.d(this, "onRetryTimeout():  phone state = %s, service state = %d, retries = %d.",
-               phoneState, serviceState, mNumRetriesSoFar);
+        if (mPhones == null) {
+            return;
+        }
 
         // - If we're actually in a call, we've succeeded.
         // - Otherwise, if the radio is now on, that means we successfully got out of airplane mode
@@ -207,29 +253,37 @@ public class EmergencyCallHelper {
         //   call.
         // - If the radio is still powered off, try powering it on again.
 
-        if (isOkToCall(serviceState, phoneState)) {
-            Log.d(this, "onRetryTimeout: Radio is on. Cleaning up.");
+        for (Phone phone : mPhones) {
+            PhoneConstants.State phoneState = phone.getState();
+            int serviceState = phone.getServiceState().getState();
+            Log.d(this, "onRetryTimeout():  phone = %s, phone state = %s, service state = %d,"
+                    + " retries = %d.", phone, phoneState, serviceState, mNumRetriesSoFar);
 
-            // Woo hoo -- we successfully got out of airplane mode.
-            onComplete(true);
-            cleanup();
-        } else {
-            // Uh oh; we've waited the full TIME_BETWEEN_RETRIES_MILLIS and the radio is still not
-            // powered-on.  Try again.
-
-            mNumRetriesSoFar++;
-            Log.d(this, "mNumRetriesSoFar is now " + mNumRetriesSoFar);
+            if (isOkToCall(phone, serviceState, phoneState)) {
+                Log.d(this, "onRetryTimeout: Radio is on. Cleaning up.");
 
-            if (mNumRetriesSoFar > MAX_NUM_RETRIES) {
-                Log.w(this, "Hit MAX_NUM_RETRIES; giving up.");
+                // Woo hoo -- we successfully got out of airplane mode.
+                onComplete(phone);
                 cleanup();
-            } else {
-                Log.d(this, "Trying (again) to turn on the radio.");
-                powerOnRadio();  // Again, we'll (hopefully) get an onServiceStateChanged() callback
-                                 // when the radio successfully comes up.
-                startRetryTimer();
+                return;
             }
         }
+
+        // Uh oh; we've waited the full TIME_BETWEEN_RETRIES_MILLIS and the radio is still not
+        // powered-on.  Try again.
+
+        mNumRetriesSoFar++;
+        Log.d(this, "mNumRetriesSoFar is now " + mNumRetriesSoFar);
+
+        if (mNumRetriesSoFar > MAX_NUM_RETRIES) {
+            Log.w(this, "Hit MAX_NUM_RETRIES; giving up.");
+            cleanup();
+        } else {
+            Log.d(this, "Trying (again) to turn on the radio.");
+            powerOnRadio();  // Again, we'll (hopefully) get an onServiceStateChanged() callback
+                             // when the radio successfully comes up.
+            startRetryTimer();
+        }
     }
 
     /**
@@ -244,6 +298,10 @@ public class EmergencyCallHelper {
         // complete.
         registerForServiceStateChanged();
 
+        if (mPowerOnTimeMillis == 0) {
+            mPowerOnTimeMillis = SystemClock.elapsedRealtime();
+        }
+
         // If airplane mode is on, we turn it off the same way that the Settings activity turns it
         // off.
         if (Settings.Global.getInt(mContext.getContentResolver(),
@@ -266,7 +324,11 @@ public class EmergencyCallHelper {
             // database doesn't think we're in airplane mode.)  In this case just turn the radio
             // back on.
             Log.d(this, "==> (Apparently) not in airplane mode; manually powering radio on.");
-            mPhone.setRadioPower(true);
+            for (Phone phone : mPhones) {
+                if (!phone.isRadioOn()) {
+                    phone.setRadioPower(true);
+                }
+            }
         }
     }
 
@@ -292,14 +354,17 @@ public class EmergencyCallHelper {
 
         // This will send a failure call back if callback has yet to be invoked.  If the callback
         // was already invoked, it's a no-op.
-        onComplete(false);
+        onComplete(null);
 
         unregisterForServiceStateChanged();
         cancelRetryTimer();
 
         // Used for unregisterForServiceStateChanged() so we null it out here instead.
-        mPhone = null;
+        mPhones = null;
         mNumRetriesSoFar = 0;
+        mStartTimeMillis = 0;
+        mPowerOnTimeMillis = 0;
+        mRadioOnTimeMillis = 0;
     }
 
     private void startRetryTimer() {
@@ -316,22 +381,48 @@ public class EmergencyCallHelper {
         // because Phone.registerForServiceStateChanged() does not prevent multiple registration of
         // the same handler.)
         unregisterForServiceStateChanged();
-        mPhone.registerForServiceStateChanged(mHandler, MSG_SERVICE_STATE_CHANGED, null);
+        for (Phone phone : mPhones) {
+            phone.registerForServiceStateChanged(mHandler, MSG_SERVICE_STATE_CHANGED, phone);
+        }
     }
 
     private void unregisterForServiceStateChanged() {
-        // This method is safe to call even if we haven't set mPhone yet.
-        if (mPhone != null) {
-            mPhone.unregisterForServiceStateChanged(mHandler);  // Safe even if unnecessary
+        // This method is safe to call even if we haven't set mPhones yet.
+        if (mPhones != null) {
+            for (Phone phone : mPhones) {
+                phone.unregisterForServiceStateChanged(mHandler);  // Safe even if unnecessary
+            }
         }
         mHandler.removeMessages(MSG_SERVICE_STATE_CHANGED);  // Clean up any pending messages too
     }
 
-    private void onComplete(boolean isRadioReady) {
+    /**
+     * Notifies the pending callback, if any.
+     *
+     * @param readyPhone The phone which is ready to place the call, or {@code null} on failure.
+     */
+    private void onComplete(Phone readyPhone) {
+        if (mCallback == null && mParallelCallback == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        Log.i(this, "onComplete: ready = %b, phone = %s, phones = %d, retries = %d,"
+                + " powerOn = %dms, radioOn = %dms, total = %dms",
+                readyPhone != null, readyPhone, mPhones == null ? 0 : mPhones.length,
+                mNumRetriesSoFar,
+                mPowerOnTimeMillis == 0 ? -1 : mPowerOnTimeMillis - mStartTimeMillis,
+                mRadioOnTimeMillis == 0 ? -1 : mRadioOnTimeMillis - mStartTimeMillis,
+                now - mStartTimeMillis);
+
         if (mCallback != null) {
             Callback tempCallback = mCallback;
             mCallback = null;
-            tempCallback.onComplete(isRadioReady);
+            tempCallback.onComplete(readyPhone != null);
+        } else {
+            ParallelCallback tempCallback = mParallelCallback;
+            mParallelCallback = null;
+            tempCallback.onComplete(readyPhone);
         }
     }
 }
@@ -51,8 +51,11 @@ import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Owns all data we have registered with Telecom including handling dynamic addition and
@@ -67,7 +70,9 @@ final class TelecomAccountRegistry {
 
     final class AccountEntry implements PstnPhoneCapabilitiesNotifier.Listener {
         private final Phone mPhone;
-        private final PhoneAccount mAccount;
+        private final boolean mIsEmergency;
+        private final boolean mIsDummy;
+        private PhoneAccount mAccount;
         private final PstnIncomingCallNotifier mIncomingCallNotifier;
         private final PstnPhoneCapabilitiesNotifier mPhoneCapabilitiesNotifier;
         private boolean mIsVideoCapable;
@@ -75,7 +80,10 @@ final class TelecomAccountRegistry {
 
         AccountEntry(Phone phone, boolean isEmergency, boolean isDummy) {
             mPhone = phone;
-            mAccount = registerPstnPhoneAccount(isEmergency, isDummy);
+            mIsEmergency = isEmergency;
+            mIsDummy = isDummy;
+            mAccount = buildPstnPhoneAccount(isEmergency, isDummy);
+            mTelecomManager.registerPhoneAccount(mAccount);
             Log.i(this, "Registered phoneAccount: %s with handle: %s",
                     mAccount, mAccount.getAccountHandle());
             mIncomingCallNotifier = new PstnIncomingCallNotifier((PhoneProxy) mPhone);
@@ -89,9 +97,24 @@ final class TelecomAccountRegistry {
         }
 
         /**
-         * Registers the specified account with Telecom as a PhoneAccountHandle.
+         * Rebuilds the {@link PhoneAccount} for this entry and re-registers it with Telecom, but
+         * only if it differs from the one which is already registered.
          */
-        private PhoneAccount registerPstnPhoneAccount(boolean isEmergency, boolean isDummyAccount) {
+        void update() {
+            PhoneAccount account = buildPstnPhoneAccount(mIsEmergency, mIsDummy);
+            if (!isSamePhoneAccount(mAccount, account)) {
+                mAccount = account;
+                mTelecomManager.registerPhoneAccount(account);
+                Log.i(this, "Updated phoneAccount: %s with handle: %s",
+                        account, account.getAccountHandle());
+            }
+        }
+
+        /**
+         * Builds the {@link PhoneAccount} for this entry; it is up to the caller to register it
+         * with Telecom.
+         */
+        private PhoneAccount buildPstnPhoneAccount(boolean isEmergency, boolean isDummyAccount) {
             String dummyPrefix = isDummyAccount ? "Dummy " : "";
 
             // Build the Phone account handle.
@@ -192,7 +215,7 @@ final class TelecomAccountRegistry {
                 icon = Icon.createWithBitmap(bitmap);
             }
 
-            PhoneAccount account = PhoneAccount.builder(phoneAccountHandle, label)
+            return PhoneAccount.builder(phoneAccountHandle, label)
                     .setAddress(Uri.fromParts(PhoneAccount.SCHEME_TEL, line1Number, null))
                     .setSubscriptionAddress(
                             Uri.fromParts(PhoneAccount.SCHEME_TEL, subNumber, null))
@@ -203,10 +226,6 @@ final class TelecomAccountRegistry {
                     .setSupportedUriSchemes(Arrays.asList(
                             PhoneAccount.SCHEME_TEL, PhoneAccount.SCHEME_VOICEMAIL))
                     .build();
-
-            // Register with Telecom and put into the account entry.
-            mTelecomManager.registerPhoneAccount(account);
-            return account;
         }
 
         public PhoneAccountHandle getPhoneAccountHandle() {
@@ -270,7 +289,6 @@ final class TelecomAccountRegistry {
         @Override
         public void onSubscriptionsChanged() {
             // Any time the SubscriptionInfo changes...rerun the setup
-            tearDownAccounts();
             setupAccounts();
         }
     };
@@ -280,7 +298,6 @@ final class TelecomAccountRegistry {
         public void onServiceStateChanged(ServiceState serviceState) {
             int newState = serviceState.getState();
             if (newState == ServiceState.STATE_IN_SERVICE && mServiceState != newState) {
-                tearDownAccounts();
                 setupAccounts();
             }
             mServiceState = newState;
@@ -292,8 +309,12 @@ final class TelecomAccountRegistry {
     private final TelecomManager mTelecomManager;
     private final TelephonyManager mTelephonyManager;
     private final SubscriptionManager mSubscriptionManager;
-    private List<AccountEntry> mAccounts = new LinkedList<AccountEntry>();
+    // Immutable snapshot of the registered accounts, keyed by handle. Replaced as a whole by
+    // setupAccounts() so that readers never observe a partially updated set.
+    private volatile Map<PhoneAccountHandle, AccountEntry> mAccounts = Collections.emptyMap();
     private int mServiceState = ServiceState.STATE_POWER_OFF;
+    // Whether stale accounts left over from a previous run have been unregistered.
+    private boolean mStaleAccountsCleanedUp = false;
 
     // TODO: Remove back-pointer from app singleton to Service, since this is not a preferred
     // pattern; redesign. This was added to fix a late release bug.
@@ -329,12 +350,8 @@ final class TelecomAccountRegistry {
      * @return {@code True} if video pausing is supported.
      */
     boolean isVideoPauseSupported(PhoneAccountHandle handle) {
-        for (AccountEntry entry : mAccounts) {
-            if (entry.getPhoneAccountHandle().equals(handle)) {
-                return entry.isVideoPauseSupported();
-            }
-        }
-        return false;
+        AccountEntry entry = handle == null ? null : mAccounts.get(handle);
+        return entry != null && entry.isVideoPauseSupported();
     }
 
     /**
@@ -364,17 +381,30 @@ final class TelecomAccountRegistry {
      * @return {@code True} if an entry exists.
      */
     private boolean hasAccountEntryForPhoneAccount(PhoneAccountHandle handle) {
-        for (AccountEntry entry : mAccounts) {
-            if (entry.getPhoneAccountHandle().equals(handle)) {
-                return true;
-            }
-        }
-        return false;
+        return mAccounts.containsKey(handle);
+    }
+
+    /**
+     * Determines whether two {@link PhoneAccount}s carry the same information, in which case
+     * there is no need to register the second one with Telecom.  The icon is derived from the same
+     * subscription record as the label and highlight color, so it is not compared.
+     */
+    private static boolean isSamePhoneAccount(PhoneAccount a, PhoneAccount b) {
+        return a.getAccountHandle().equals(b.getAccountHandle())
+                && a.getCapabilities() == b.getCapabilities()
+                && a.getHighlightColor() == b.getHighlightColor()
+                && TextUtils.equals(a.getLabel(), b.getLabel())
+                && TextUtils.equals(a.getShortDescription(), b.getShortDescription())
+                && Objects.equals(a.getAddress(), b.getAddress())
+                && Objects.equals(a.getSubscriptionAddress(), b.getSubscriptionAddress())
+                && Objects.equals(a.getSupportedUriSchemes(), b.getSupportedUriSchemes());
     }
 
     /**
      * Un-registers any {@link PhoneAccount}s which are no longer present in the list
-     * {@code AccountEntry}(s).
+     * {@code AccountEntry}(s).  Accounts removed while we are running are unregistered directly
+     * by {@link #setupAccounts}, so this only needs to run once to catch accounts left over from
+     * a previous run.
      */
     private void cleanupPhoneAccounts() {
         ComponentName telephonyComponentName =
@@ -391,9 +421,12 @@ final class TelecomAccountRegistry {
     }
 
     private void setupAccounts() {
-        // Go through SIM-based phones and register ourselves -- registering an existing account
-        // will cause the existing entry to be replaced.
+        // Go through SIM-based phones and work out which accounts should exist. Entries which
+        // already exist for the same phone are kept and only re-registered if their contents
+        // changed; new ones are registered and the rest are unregistered.
         Phone[] phones = PhoneFactory.getPhones();
+        Map<PhoneAccountHandle, AccountEntry> oldAccounts = mAccounts;
+        Map<PhoneAccountHandle, AccountEntry> newAccounts = new LinkedHashMap<>();
         Log.d(this, "Found %d phones.  Attempting to register.", phones.length);
 
         // states we are interested in from what
@@ -436,25 +469,44 @@ final class TelecomAccountRegistry {
             }
 
             if ((subscriptionId >= 0) && (provisionStatus == PROVISIONED)){
-                mAccounts.add(new AccountEntry(phone, false /* emergency */, false /* isDummy */));
+                addAccountEntry(newAccounts, oldAccounts, phone, false /* emergency */,
+                        false /* isDummy */);
             }
         }
 
         // If we did not list ANY accounts, we need to provide a "default" SIM account
         // for emergency numbers since no actual SIM is needed for dialing emergency
         // numbers but a phone account is.
-        if (mAccounts.isEmpty()) {
-            mAccounts.add(new AccountEntry(PhoneFactory.getDefaultPhone(), true /* emergency */,
-                    false /* isDummy */));
+        if (newAccounts.isEmpty()) {
+            addAccountEntry(newAccounts, oldAccounts, PhoneFactory.getDefaultPhone(),
+                    true /* emergency */, false /* isDummy */);
         }
 
         // Add a fake account entry.
         if (DBG && phones.length > 0 && "TRUE".equals(System.getProperty("dummy_sim"))) {
-            mAccounts.add(new AccountEntry(phones[0], false /* emergency */, true /* isDummy */));
+            addAccountEntry(newAccounts, oldAccounts, phones[0], false /* emergency */,
+                    true /* isDummy */);
+        }
+
+        // Tear down and unregister the entries which are no longer needed.
+        for (Map.Entry<PhoneAccountHandle, AccountEntry> entry : oldAccounts.entrySet()) {
+            if (newAccounts.get(entry.getKey()) != entry.getValue()) {
+                entry.getValue().teardown();
+                if (!newAccounts.containsKey(entry.getKey())) {
+                    Log.i(this, "Unregistering phone account %s.", entry.getKey());
+                    mTelecomManager.unregisterPhoneAccount(entry.getKey());
+                }
+            }
         }
+        mAccounts = Collections.unmodifiableMap(newAccounts);
+        Log.d(this, "setupAccounts: %d accounts, previously %d.", newAccounts.size(),
+                oldAccounts.size());
 
         // Clean up any PhoneAccounts that are no longer relevant
-        cleanupPhoneAccounts();
+        if (!mStaleAccountsCleanedUp) {
+            cleanupPhoneAccounts();
+            mStaleAccountsCleanedUp = true;
+        }
 
         // At some point, the phone account ID was switched from the subId to the iccId.
         // If there is a default account, check if this is the case, and upgrade the default account
@@ -481,10 +533,21 @@ final class TelecomAccountRegistry {
         }
     }
 
-    private void tearDownAccounts() {
-        for (AccountEntry entry : mAccounts) {
-            entry.teardown();
+    /**
+     * Adds the {@link AccountEntry} for the given phone to {@code newAccounts}, reusing the entry
+     * from {@code oldAccounts} if there is one for the same handle and phone.
+     */
+    private void addAccountEntry(Map<PhoneAccountHandle, AccountEntry> newAccounts,
+            Map<PhoneAccountHandle, AccountEntry> oldAccounts, Phone phone, boolean isEmergency,
+            boolean isDummy) {
+        PhoneAccountHandle handle = PhoneUtils.makePstnPhoneAccountHandleWithPrefix(
+                phone, isDummy ? "Dummy " : "", isEmergency);
+        AccountEntry entry = oldAccounts.get(handle);
+        if (entry != null && entry.mPhone == phone && entry.mIsEmergency == isEmergency) {
+            entry.update();
+        } else {
+            entry = new AccountEntry(phone, isEmergency, isDummy);
         }
-        mAccounts.clear();
+        newAccounts.put(entry.getPhoneAccountHandle(), entry);
     }
 }
@@ -44,17 +44,15 @@ import com.android.internal.telephony.gsm.SuppServiceNotification;
 
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.imsphone.ImsPhoneConnection;
+import com.android.phone.Profiler;
 import com.android.phone.R;
 import com.android.internal.telephony.PhoneConstants;
 
 import java.lang.Override;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base class for CDMA and GSM connections.
@@ -135,8 +133,7 @@ abstract class TelephonyConnection extends Connection {
                     notifyConferenceMergeFailed();
                     break;
                 case MSG_SET_VIDEO_STATE:
-                    int videoState = (int) msg.obj;
-                    setVideoState(videoState);
+                    setVideoState(msg.arg1);
                     break;
 
                 case MSG_PHONE_VP_ON:
@@ -159,8 +156,7 @@ abstract class TelephonyConnection extends Connection {
                     break;
 
                 case MSG_SET_AUDIO_QUALITY:
-                    int audioQuality = (int) msg.obj;
-                    setAudioQuality(audioQuality);
+                    setAudioQuality(msg.arg1);
                     break;
 
                 case MSG_SET_CONFERENCE_PARTICIPANTS:
@@ -417,7 +413,7 @@ abstract class TelephonyConnection extends Connection {
             new com.android.internal.telephony.Connection.ListenerBase() {
         @Override
         public void onVideoStateChanged(int videoState) {
-            mHandler.obtainMessage(MSG_SET_VIDEO_STATE, videoState).sendToTarget();
+            mHandler.obtainMessage(MSG_SET_VIDEO_STATE, videoState, 0).sendToTarget();
         }
 
         /*
@@ -427,6 +423,8 @@ abstract class TelephonyConnection extends Connection {
          */
         @Override
         public void onConnectionCapabilitiesChanged(int capabilities) {
+            // Only the latest capabilities matter, so drop any update which is still pending.
+            mHandler.removeMessages(MSG_SET_CONNECTION_CAPABILITY);
             mHandler.obtainMessage(MSG_SET_CONNECTION_CAPABILITY,
                     capabilities, 0).sendToTarget();
         }
@@ -461,7 +459,7 @@ abstract class TelephonyConnection extends Connection {
          */
         @Override
         public void onAudioQualityChanged(int audioQuality) {
-            mHandler.obtainMessage(MSG_SET_AUDIO_QUALITY, audioQuality).sendToTarget();
+            mHandler.obtainMessage(MSG_SET_AUDIO_QUALITY, audioQuality, 0).sendToTarget();
         }
         /**
          * Handles a change in the state of conference participant(s), as reported by the
@@ -495,6 +493,8 @@ abstract class TelephonyConnection extends Connection {
 
         @Override
         public void onExtrasChanged(Bundle extras) {
+            // The extras replace the previous ones, so drop any update which is still pending.
+            mHandler.removeMessages(MSG_CONNECTION_EXTRAS_CHANGED);
             mHandler.obtainMessage(MSG_CONNECTION_EXTRAS_CHANGED, extras).sendToTarget();
         }
     };
@@ -505,6 +505,14 @@ abstract class TelephonyConnection extends Connection {
 
     private boolean mWasImsConnection;
 
+    /**
+     * The {@link Profiler} call setup phase which ends once this connection starts dialing, and
+     * the time at which it started, or {@code NO_SETUP_TRACE} if no phase is being traced.
+     */
+    private static final int NO_SETUP_TRACE = -1;
+    private int mSetupTracePhase = NO_SETUP_TRACE;
+    private long mSetupTraceStartMillis;
+
     /**
      * Tracks the multiparty state of the ImsCall so that changes in the bit state can be detected.
      */
@@ -541,11 +549,15 @@ abstract class TelephonyConnection extends Connection {
      */
     private boolean mIsVideoPauseSupported;
 
+    private static final TelephonyConnectionListener[] NO_LISTENERS =
+            new TelephonyConnectionListener[0];
+
     /**
-     * Listeners to our TelephonyConnection specific callbacks
+     * Listeners to our TelephonyConnection specific callbacks. The array is copied on write so
+     * that callbacks can be fired by walking it without locking or allocating an iterator.
      */
-    private final Set<TelephonyConnectionListener> mTelephonyListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<TelephonyConnectionListener, Boolean>(8, 0.9f, 1));
+    private volatile TelephonyConnectionListener[] mTelephonyListeners = NO_LISTENERS;
+    private final Object mTelephonyListenersLock = new Object();
 
     protected TelephonyConnection(com.android.internal.telephony.Connection originalConnection) {
         if (originalConnection != null) {
@@ -571,6 +583,7 @@ abstract class TelephonyConnection extends Connection {
     @Override
     public void onStateChanged(int state) {
         Log.v(this, "onStateChanged, state: " + Connection.stateToString(state));
+        updateSetupTrace(state);
         updateStatusHints();
     }
 
@@ -1050,6 +1063,31 @@ abstract class TelephonyConnection extends Connection {
         return true;
     }
 
+    /**
+     * Hands a call setup phase started by {@link TelephonyConnectionService} over to this
+     * connection, which ends it on the first transition to {@link Connection#STATE_DIALING}.
+     */
+    void setSetupTrace(int phase, long startMillis) {
+        mSetupTracePhase = phase;
+        mSetupTraceStartMillis = startMillis;
+        // The dial may already have gone through by the time the trace is handed over.
+        updateSetupTrace(getState());
+    }
+
+    private void updateSetupTrace(int state) {
+        if (mSetupTracePhase == NO_SETUP_TRACE) {
+            return;
+        }
+        if (state == STATE_DIALING) {
+            Profiler.end(mSetupTracePhase, mSetupTraceStartMillis);
+        } else if (state == STATE_DISCONNECTED) {
+            Profiler.cancel(mSetupTracePhase, mSetupTraceStartMillis);
+        } else {
+            return;
+        }
+        mSetupTracePhase = NO_SETUP_TRACE;
+    }
+
     void updateState() {
        updateState(false);
     }
@@ -1088,8 +1126,6 @@ abstract class TelephonyConnection extends Connection {
                                 mSsNotification.notificationType,
                                 mSsNotification.code));
                         mSsNotification = null;
-                        DisconnectCauseUtil.mNotificationCode = 0xFF;
-                        DisconnectCauseUtil.mNotificationType = 0xFF;
                     } else {
                         setDisconnected(DisconnectCauseUtil.toTelecomDisconnectCause(
                                 mOriginalConnection.getDisconnectCause(),
@@ -1431,7 +1467,14 @@ abstract class TelephonyConnection extends Connection {
      * @return The connection being listened to
      */
     public final TelephonyConnection addTelephonyConnectionListener(TelephonyConnectionListener l) {
-        mTelephonyListeners.add(l);
+        synchronized (mTelephonyListenersLock) {
+            TelephonyConnectionListener[] listeners = mTelephonyListeners;
+            if (indexOfListener(listeners, l) < 0) {
+                listeners = Arrays.copyOf(listeners, listeners.length + 1);
+                listeners[listeners.length - 1] = l;
+                mTelephonyListeners = listeners;
+            }
+        }
         // If we already have an original connection, let's call back immediately.
         // This would be the case for incoming calls.
         if (mOriginalConnection != null) {
@@ -1448,18 +1491,40 @@ abstract class TelephonyConnection extends Connection {
     public final TelephonyConnection removeTelephonyConnectionListener(
             TelephonyConnectionListener l) {
         if (l != null) {
-            mTelephonyListeners.remove(l);
+            synchronized (mTelephonyListenersLock) {
+                TelephonyConnectionListener[] listeners = mTelephonyListeners;
+                int index = indexOfListener(listeners, l);
+                if (index >= 0) {
+                    TelephonyConnectionListener[] newListeners =
+                            new TelephonyConnectionListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, newListeners, 0, index);
+                    System.arraycopy(listeners, index + 1, newListeners, index,
+                            listeners.length - index - 1);
+                    mTelephonyListeners = newListeners;
+                }
+            }
         }
         return this;
     }
 
+    private static int indexOfListener(TelephonyConnectionListener[] listeners,
+            TelephonyConnectionListener l) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(l)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Fire a callback to the various listeners for when the original connection is
      * set in this {@link TelephonyConnection}
      */
     private final void fireOnOriginalConnectionConfigured() {
-        for (TelephonyConnectionListener l : mTelephonyListeners) {
-            l.onOriginalConnectionConfigured(this);
+        final TelephonyConnectionListener[] listeners = mTelephonyListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onOriginalConnectionConfigured(this);
         }
     }
 
@@ -16,12 +16,15 @@
 
 package com.android.services.telephony;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.telecom.Connection;
 import android.telecom.ConnectionRequest;
 import android.telecom.ConnectionService;
@@ -32,6 +35,7 @@ import android.telephony.PhoneNumberUtils;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
@@ -46,10 +50,13 @@ import com.android.internal.telephony.cdma.CDMAPhone;
 import com.android.internal.telephony.TelephonyProperties;
 import com.android.phone.MMIDialogActivity;
 import com.android.phone.PhoneUtils;
+import com.android.phone.Profiler;
 import com.android.phone.R;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import android.os.Bundle;
 import java.util.Objects;
 import java.util.regex.Pattern;
@@ -78,6 +85,39 @@ public class TelephonyConnectionService extends ConnectionService {
     private static boolean [] sLchState = new
             boolean[sPhoneCount];
 
+    /**
+     * Per-account state needed to place an outgoing call which only changes when subscriptions or
+     * carrier configuration change, so that it does not have to be looked up on every dial.
+     */
+    private static final class PreparedDialContext {
+        final Phone phone;
+        final boolean disableActivationCode;
+
+        PreparedDialContext(Phone phone, boolean disableActivationCode) {
+            this.phone = phone;
+            this.disableActivationCode = disableActivationCode;
+        }
+    }
+
+    // Only accessed from the main thread.
+    private final Map<PhoneAccountHandle, PreparedDialContext> mPreparedDialContexts =
+            new HashMap<>();
+
+    private final OnSubscriptionsChangedListener mOnSubscriptionsChangedListener =
+            new OnSubscriptionsChangedListener() {
+        @Override
+        public void onSubscriptionsChanged() {
+            mPreparedDialContexts.clear();
+        }
+    };
+
+    private final BroadcastReceiver mCarrierConfigChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mPreparedDialContexts.clear();
+        }
+    };
+
     /**
      * A listener to actionable events specific to the TelephonyConnection.
      */
@@ -101,6 +141,19 @@ public class TelephonyConnectionService extends ConnectionService {
         mExpectedComponentName = new ComponentName(this, this.getClass());
         mEmergencyTonePlayer = new EmergencyTonePlayer(this);
         TelecomAccountRegistry.getInstance(this).setTelephonyConnectionService(this);
+        SubscriptionManager.from(this).addOnSubscriptionsChangedListener(
+                mOnSubscriptionsChangedListener);
+        registerReceiver(mCarrierConfigChangedReceiver,
+                new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+    }
+
+    @Override
+    public void onDestroy() {
+        SubscriptionManager.from(this).removeOnSubscriptionsChangedListener(
+                mOnSubscriptionsChangedListener);
+        unregisterReceiver(mCarrierConfigChangedReceiver);
+        mPreparedDialContexts.clear();
+        super.onDestroy();
     }
 
     @Override
@@ -108,6 +161,24 @@ public class TelephonyConnectionService extends ConnectionService {
             PhoneAccountHandle connectionManagerPhoneAccount,
             final ConnectionRequest request) {
         Log.i(this, "onCreateOutgoingConnection, request: " + request);
+        long startTimeMillis = Profiler.begin(Profiler.PHASE_OUTGOING_CREATE_TO_DIALING);
+        Connection connection = createOutgoingConnection(request, startTimeMillis);
+        if (connection instanceof TelephonyConnection) {
+            // The connection ends the trace once it starts dialing.
+            ((TelephonyConnection) connection).setSetupTrace(
+                    Profiler.PHASE_OUTGOING_CREATE_TO_DIALING, startTimeMillis);
+        } else {
+            Profiler.cancel(Profiler.PHASE_OUTGOING_CREATE_TO_DIALING, startTimeMillis);
+        }
+        return connection;
+    }
+
+    /**
+     * @param startTimeMillis The {@link SystemClock#elapsedRealtime()} at which the outgoing
+     *         connection was requested.
+     */
+    private Connection createOutgoingConnection(final ConnectionRequest request,
+            final long startTimeMillis) {
 
         Bundle bundle = request.getExtras();
         boolean isSkipSchemaOrConfUri = (bundle != null) && (bundle.getBoolean(
@@ -164,20 +235,14 @@ public class TelephonyConnectionService extends ConnectionService {
                                 "Unable to parse number"));
             }
 
-            final Phone phone = getPhoneForAccount(request.getAccountHandle(), false);
-            if (phone != null && CDMA_ACTIVATION_CODE_REGEX_PATTERN.matcher(number).matches()) {
+            final PreparedDialContext dialContext =
+                    getPreparedDialContext(request.getAccountHandle());
+            if (dialContext != null
+                    && CDMA_ACTIVATION_CODE_REGEX_PATTERN.matcher(number).matches()) {
                 // Obtain the configuration for the outgoing phone's SIM. If the outgoing number
                 // matches the *228 regex pattern, fail the call. This number is used for OTASP, and
                 // when dialed could lock LTE SIMs to 3G if not prohibited..
-                boolean disableActivation = false;
-                CarrierConfigManager cfgManager = (CarrierConfigManager)
-                        phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-                if (cfgManager != null) {
-                    disableActivation = cfgManager.getConfigForSubId(phone.getSubId())
-                            .getBoolean(CarrierConfigManager.KEY_DISABLE_CDMA_ACTIVATION_CODE_BOOL);
-                }
-
-                if (disableActivation) {
+                if (dialContext.disableActivationCode) {
                     return Connection.createFailedConnection(
                             DisconnectCauseUtil.toTelecomDisconnectCause(
                                     android.telephony.DisconnectCause
@@ -259,6 +324,33 @@ public class TelephonyConnectionService extends ConnectionService {
             if (mEmergencyCallHelper == null) {
                 mEmergencyCallHelper = new EmergencyCallHelper(this);
             }
+            final Phone[] candidatePhones =
+                    getCandidatePhonesForEmergencyCall(phone, request.getAccountHandle());
+            if (candidatePhones.length > 1) {
+                // Bring up all the radios at once and place the call on whichever comes up first.
+                mEmergencyCallHelper.startParallelTurnOnRadioSequence(candidatePhones,
+                        new EmergencyCallHelper.ParallelCallback() {
+                            @Override
+                            public void onComplete(Phone readyPhone) {
+                                if (connection.getState() == Connection.STATE_DISCONNECTED) {
+                                    // If the connection has already been disconnected, do nothing.
+                                } else if (readyPhone != null) {
+                                    connection.setInitialized();
+                                    placeOutgoingConnection(connection, readyPhone, request,
+                                            startTimeMillis);
+                                } else {
+                                    Log.d(this, "onCreateOutgoingConnection, failed to turn on"
+                                            + " radio");
+                                    connection.setDisconnected(
+                                            DisconnectCauseUtil.toTelecomDisconnectCause(
+                                                    android.telephony.DisconnectCause.POWER_OFF,
+                                                    "Failed to turn on radio."));
+                                    connection.destroy();
+                                }
+                            }
+                        });
+                return connection;
+            }
             mEmergencyCallHelper.startTurnOnRadioSequence(phone,
                     new EmergencyCallHelper.Callback() {
                         @Override
@@ -267,7 +359,8 @@ public class TelephonyConnectionService extends ConnectionService {
                                 // If the connection has already been disconnected, do nothing.
                             } else if (isRadioReady) {
                                 connection.setInitialized();
-                                placeOutgoingConnection(connection, phone, request);
+                                placeOutgoingConnection(connection, phone, request,
+                                        startTimeMillis);
                             } else {
                                 Log.d(this, "onCreateOutgoingConnection, failed to turn on radio");
                                 connection.setDisconnected(
@@ -280,7 +373,7 @@ public class TelephonyConnectionService extends ConnectionService {
                     });
 
         } else {
-            placeOutgoingConnection(connection, phone, request);
+            placeOutgoingConnection(connection, phone, request, startTimeMillis);
         }
 
         return connection;
@@ -299,6 +392,7 @@ public class TelephonyConnectionService extends ConnectionService {
                             android.telephony.DisconnectCause.ERROR_UNSPECIFIED,
                             "Phone is null"));
         }
+        long notifyTimeMillis = Profiler.takeIncomingCallNotified(phone.getPhoneId());
 
         Call call = phone.getRingingCall();
         if (!call.getState().isRinging()) {
@@ -317,12 +411,23 @@ public class TelephonyConnectionService extends ConnectionService {
             return Connection.createCanceledConnection();
         }
 
+        long createTimeMillis = Profiler.begin(Profiler.PHASE_INCOMING_CREATE_TO_RINGING);
         Connection connection =
                 createConnectionFor(phone, originalConnection, false /* isOutgoing */,
                         request.getAccountHandle());
         if (connection == null) {
+            Profiler.cancel(Profiler.PHASE_INCOMING_CREATE_TO_RINGING, createTimeMillis);
             return Connection.createCanceledConnection();
         } else {
+            // Setting the original connection sets the new connection ringing right away.
+            if (connection.getState() == Connection.STATE_RINGING) {
+                Profiler.end(Profiler.PHASE_INCOMING_CREATE_TO_RINGING, createTimeMillis);
+                if (notifyTimeMillis != 0) {
+                    Profiler.record(Profiler.PHASE_INCOMING_NOTIFY_TO_RINGING, notifyTimeMillis);
+                }
+            } else {
+                Profiler.cancel(Profiler.PHASE_INCOMING_CREATE_TO_RINGING, createTimeMillis);
+            }
             return connection;
         }
     }
@@ -416,8 +521,14 @@ public class TelephonyConnectionService extends ConnectionService {
 
     }
 
-    private void placeOutgoingConnection(
-            TelephonyConnection connection, Phone phone, ConnectionRequest request) {
+    /**
+     * Dials the connection's address on the given phone.
+     *
+     * @param startTimeMillis The {@link SystemClock#elapsedRealtime()} at which the outgoing
+     *         connection was requested, used to log the time taken to reach the dial.
+     */
+    private void placeOutgoingConnection(TelephonyConnection connection, Phone phone,
+            ConnectionRequest request, long startTimeMillis) {
         String number = connection.getAddress().getSchemeSpecificPart();
 
         Bundle bundle = request.getExtras();
@@ -432,6 +543,8 @@ public class TelephonyConnectionService extends ConnectionService {
                 return;
             } else {
                 originalConnection = phone.dial(number, null, request.getVideoState(), bundle);
+                Log.i(this, "placeOutgoingConnection, time to dial: %dms",
+                        SystemClock.elapsedRealtime() - startTimeMillis);
             }
         } catch (CallStateException e) {
             Log.e(this, e, "placeOutgoingConnection, phone.dial exception: " + e);
@@ -510,6 +623,36 @@ public class TelephonyConnectionService extends ConnectionService {
             return PhoneFactory.getDefaultPhone();
         }
 
+        PreparedDialContext dialContext = getPreparedDialContext(accountHandle);
+        return dialContext != null ? dialContext.phone : null;
+    }
+
+    /**
+     * Returns the cached {@link PreparedDialContext} for an account, building it if needed.
+     *
+     * @return The context, or {@code null} if the account does not map to a phone.
+     */
+    private PreparedDialContext getPreparedDialContext(PhoneAccountHandle accountHandle) {
+        PreparedDialContext dialContext = mPreparedDialContexts.get(accountHandle);
+        if (dialContext == null) {
+            Phone phone = lookupPhoneForAccount(accountHandle);
+            if (phone == null) {
+                return null;
+            }
+            boolean disableActivation = false;
+            CarrierConfigManager cfgManager = (CarrierConfigManager)
+                    phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
+            if (cfgManager != null) {
+                disableActivation = cfgManager.getConfigForSubId(phone.getSubId())
+                        .getBoolean(CarrierConfigManager.KEY_DISABLE_CDMA_ACTIVATION_CODE_BOOL);
+            }
+            dialContext = new PreparedDialContext(phone, disableActivation);
+            mPreparedDialContexts.put(accountHandle, dialContext);
+        }
+        return dialContext;
+    }
+
+    private Phone lookupPhoneForAccount(PhoneAccountHandle accountHandle) {
         int subId = PhoneUtils.getSubIdForPhoneAccountHandle(accountHandle);
         if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
             int phoneId = SubscriptionController.getInstance().getPhoneId(subId);
@@ -519,6 +662,35 @@ public class TelephonyConnectionService extends ConnectionService {
         return null;
     }
 
+    /**
+     * Returns the phones whose radios may be powered on in parallel to place an emergency call,
+     * starting with the preferred phone.
+     *
+     * The connection has already been created for the preferred phone and is reported to Telecom
+     * with the request's account, so only the preferred phone is returned when that account names
+     * a subscription. Otherwise only phones which would have been set up the same way, that is of
+     * the same type and with the same mute policy, are included.
+     */
+    private Phone[] getCandidatePhonesForEmergencyCall(Phone preferredPhone,
+            PhoneAccountHandle accountHandle) {
+        if (PhoneUtils.getSubIdForPhoneAccountHandle(accountHandle)
+                != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            return new Phone[] { preferredPhone };
+        }
+        List<Phone> candidates = new ArrayList<>();
+        candidates.add(preferredPhone);
+        boolean allowMute = allowMute(preferredPhone);
+        for (int i = 0; i < sPhoneCount; i++) {
+            Phone phone = PhoneFactory.getPhone(i);
+            if (phone != null && phone != preferredPhone
+                    && phone.getPhoneType() == preferredPhone.getPhoneType()
+                    && allowMute(phone) == allowMute) {
+                candidates.add(phone);
+            }
+        }
+        return candidates.toArray(new Phone[candidates.size()]);
+    }
+
     private Phone getFirstPhoneForEmergencyCall() {
         Phone selectPhone = null;
         for (int i = 0; i < TelephonyManager.getDefault().getSimCount(); i++) {
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone.vvm.omtp.sms;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.phone.vvm.omtp.OmtpConstants;
+
+// Test suite for the parsing of OMTP SYNC and STATUS SMS bodies.
+// See tests/AndroidManifest.xml how to run these tests.
+public class OmtpSmsParserTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testParseSync() throws Exception {
+        WrappedMessageData data = OmtpSmsParser.parse(OmtpConstants.SYNC_SMS_PREFIX
+                + "ev=NM;id=3446456;c=1;t=v;s=01234567898;dt=02/08/2008 12:53 +0200;l=30");
+
+        assertEquals(OmtpConstants.SYNC_SMS_PREFIX, data.getPrefix());
+        assertEquals("NM", data.extractString(OmtpConstants.SYNC_TRIGGER_EVENT));
+        assertEquals("3446456", data.extractString(OmtpConstants.MESSAGE_UID));
+        assertEquals(Integer.valueOf(1), data.extractInteger(OmtpConstants.NUM_MESSAGE_COUNT));
+        assertEquals("v", data.extractString(OmtpConstants.CONTENT_TYPE));
+        assertEquals("01234567898", data.extractString(OmtpConstants.SENDER));
+        assertEquals("02/08/2008 12:53 +0200", data.extractString(OmtpConstants.TIME));
+        assertEquals(Integer.valueOf(30), data.extractInteger(OmtpConstants.MESSAGE_LENGTH));
+    }
+
+    @SmallTest
+    public void testParseSyncWithoutTriggerEventIsRejected() throws Exception {
+        assertNull(OmtpSmsParser.parse(OmtpConstants.SYNC_SMS_PREFIX + "id=3446456;c=1"));
+    }
+
+    @SmallTest
+    public void testParseStatus() throws Exception {
+        WrappedMessageData data = OmtpSmsParser.parse(OmtpConstants.STATUS_SMS_PREFIX
+                + "st=R;rc=0;srv=1;dn=1;ipt=1;spt=0;u=eg@example.com;pw=1");
+
+        assertEquals(OmtpConstants.STATUS_SMS_PREFIX, data.getPrefix());
+        assertEquals("R", data.extractString(OmtpConstants.PROVISIONING_STATUS));
+        assertEquals("0", data.extractString(OmtpConstants.RETURN_CODE));
+        assertEquals("1", data.extractString(OmtpConstants.SERVER_ADDRESS));
+        assertEquals("eg@example.com", data.extractString(OmtpConstants.IMAP_USER_NAME));
+    }
+
+    @SmallTest
+    public void testParseUnknownPrefix() throws Exception {
+        assertNull(OmtpSmsParser.parse("//VVM:OTHER:st=R"));
+        assertNull(OmtpSmsParser.parse(null));
+    }
+
+    @SmallTest
+    public void testWhitespaceIsTrimmed() throws Exception {
+        WrappedMessageData data = parseStatus(" st = R ;\trc= 0\t; u =eg@example.com ");
+
+        assertEquals("R", data.extractString(OmtpConstants.PROVISIONING_STATUS));
+        assertEquals("0", data.extractString(OmtpConstants.RETURN_CODE));
+        assertEquals("eg@example.com", data.extractString(OmtpConstants.IMAP_USER_NAME));
+    }
+
+    @SmallTest
+    public void testEmptyValues() throws Exception {
+        WrappedMessageData data = parseStatus("a=;b= ;c=1");
+
+        // No value at all drops the entry, while a blank value is kept as empty.
+        assertNull(data.extractString("a"));
+        assertEquals("", data.extractString("b"));
+        assertEquals("1", data.extractString("c"));
+    }
+
+    @SmallTest
+    public void testEmptyKey() throws Exception {
+        WrappedMessageData data = parseStatus("=1;c=2");
+
+        assertEquals("1", data.extractString(""));
+        assertEquals("2", data.extractString("c"));
+    }
+
+    @SmallTest
+    public void testRepeatedKeyValueSeparator() throws Exception {
+        WrappedMessageData data = parseStatus("a=1=;b==1;c=1=2;d=1==;e=;f==;g=1");
+
+        // Trailing separators are ignored; any other extra separator drops the entry.
+        assertEquals("1", data.extractString("a"));
+        assertNull(data.extractString("b"));
+        assertNull(data.extractString("c"));
+        assertEquals("1", data.extractString("d"));
+        assertNull(data.extractString("e"));
+        assertNull(data.extractString("f"));
+        assertEquals("1", data.extractString("g"));
+    }
+
+    @SmallTest
+    public void testEmptyAndTrailingFields() throws Exception {
+        WrappedMessageData data = parseStatus(";a=1;;b=2; ;c;=;c=3;");
+
+        assertEquals("1", data.extractString("a"));
+        assertEquals("2", data.extractString("b"));
+        assertEquals("3", data.extractString("c"));
+        assertNull(data.extractString(""));
+    }
+
+    @SmallTest
+    public void testEmptyBody() throws Exception {
+        WrappedMessageData data = parseStatus("");
+
+        assertNotNull(data);
+        assertNull(data.extractString(OmtpConstants.PROVISIONING_STATUS));
+    }
+
+    // HELPERS
+
+    private static WrappedMessageData parseStatus(String fields) {
+        WrappedMessageData data = OmtpSmsParser.parse(OmtpConstants.STATUS_SMS_PREFIX + fields);
+        assertNotNull(data);
+        return data;
+    }
+}